@@ -18,11 +18,16 @@
  */
 package info.servertools.core;
 
+import info.servertools.core.util.StorageMode;
+
 import ninja.leaping.configurate.objectmapping.Setting;
 import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("CanBeFinal")
 public class CoreConfig {
@@ -36,6 +41,9 @@ public class CoreConfig {
     @Setting(value = "teleport")
     private TeleportCategory teleport = new TeleportCategory();
 
+    @Setting(value = "storage")
+    private StorageCategory storage = new StorageCategory();
+
     public GeneralCategory getGeneral() {
         return general;
     }
@@ -48,6 +56,10 @@ public class CoreConfig {
         return teleport;
     }
 
+    public StorageCategory getStorage() {
+        return storage;
+    }
+
     @ConfigSerializable
     public static class GeneralCategory extends Category {
 
@@ -58,6 +70,11 @@ public class CoreConfig {
                 comment = "Enable a flat bedrock generator to cause all newly generated chunks to have a layer of bedrock one layer thick")
         private boolean flatBedrockEnabled = true;
 
+        @Setting(value = "join-work-time-per-tick",
+                comment = "Number of milliseconds each tick may spend on work for players that just logged in, such as sending the MOTD. "
+                        + "The rest waits for a later tick, so a crowd logging in at once doesn't stall the server")
+        private int joinWorkTimePerTick = 5;
+
         public boolean isHelpOverrideEnabled() {
             return helpOverrideEnabled;
         }
@@ -65,6 +82,10 @@ public class CoreConfig {
         public boolean isFlatBedrockEnabled() {
             return flatBedrockEnabled;
         }
+
+        public int getJoinWorkTimePerTick() {
+            return joinWorkTimePerTick;
+        }
     }
 
     @ConfigSerializable
@@ -102,9 +123,63 @@ public class CoreConfig {
         @Setting(value = "enable-homes", comment = "Allow players to set a home and teleport back to it from anywhere")
         private boolean homesEnabled = true;
 
+        @Setting(value = "max-homes", comment = "Number of named homes each player may set. Only PER_PLAYER home storage supports more than one")
+        private int maxHomes = 3;
+
         @Setting(value = "enable-cross-dimension-teleports", comment = "Enable teleporting to a different dimension")
         private boolean crossDimTeleportEnabled = false;
 
+        @Setting(value = "warmup",
+                comment = "Number of seconds a player must stand still without taking damage before /home, /teleport or /warp moves them. 0 teleports instantly")
+        private int warmup = 0;
+
+        @Setting(value = "preload-radius",
+                comment = "Radius in chunks around a teleport destination that is loaded before the player is moved, from 0 to 2. 0 loads only the destination chunk")
+        private int preloadRadius = 1;
+
+        @Setting(value = "safe-landing",
+                comment = "Move players to the nearest place around a teleport destination where they can stand without suffocating, drowning or burning")
+        private boolean safeLandingEnabled = true;
+
+        @Setting(value = "warm-dimensions",
+                comment = "Dimensions to load in the background after the server starts and keep loaded, so teleporting into them never waits for them to load")
+        private List<Integer> warmDimensions = new ArrayList<>();
+
+        @Setting(value = "dimension-grace-period",
+                comment = "Number of seconds to keep a dimension loaded after a teleport into it, so the next teleport there doesn't load it again")
+        private int dimensionGracePeriod = 60;
+
+        @Setting(value = "max-teleports-per-tick",
+                comment = "Number of players that may be moved by /home, /teleport or /warp in one tick. Others wait in line for a later tick")
+        private int maxTeleportsPerTick = 4;
+
+        @Setting(value = "teleport-time-per-tick",
+                comment = "Number of milliseconds each tick may spend loading destinations and moving players before the rest wait for a later tick")
+        private int teleportTimePerTick = 10;
+
+        @Setting(value = "enable-random-teleport",
+                comment = "Allow players to teleport to a random safe place with /rtp. The places are found ahead of time, which loads and generates "
+                        + "chunks in the background and so grows the world")
+        private boolean randomTeleportEnabled = false;
+
+        @Setting(value = "random-teleport-dimensions", comment = "Dimensions /rtp can be used in. Players land in the dimension they are in")
+        private List<Integer> randomTeleportDimensions = new ArrayList<>(Collections.singletonList(0));
+
+        @Setting(value = "random-teleport-radius", comment = "Maximum distance in blocks from the world spawn that /rtp sends players")
+        private int randomTeleportRadius = 5000;
+
+        @Setting(value = "random-teleport-pool-size",
+                comment = "Number of safe places found ahead of time for /rtp in each dimension. Players find /rtp unavailable while the pool is empty")
+        private int randomTeleportPoolSize = 16;
+
+        @Setting(value = "random-teleport-time-per-tick",
+                comment = "Number of milliseconds a tick that has time to spare may spend looking for safe places for /rtp")
+        private int randomTeleportTimePerTick = 2;
+
+        @Setting(value = "cooldowns",
+                comment = "Number of seconds a player must wait after teleporting before using the same command again, by command name. Missing commands have no cooldown")
+        private Map<String, Integer> cooldowns = defaultCooldowns();
+
         public boolean isTeleportsEnabled() {
             return teleportsEnabled;
         }
@@ -113,9 +188,129 @@ public class CoreConfig {
             return homesEnabled;
         }
 
+        public int getMaxHomes() {
+            return maxHomes;
+        }
+
         public boolean isCrossDimTeleportEnabled() {
             return crossDimTeleportEnabled;
         }
+
+        public int getWarmup() {
+            return warmup;
+        }
+
+        public int getPreloadRadius() {
+            return preloadRadius;
+        }
+
+        public boolean isSafeLandingEnabled() {
+            return safeLandingEnabled;
+        }
+
+        public List<Integer> getWarmDimensions() {
+            return warmDimensions;
+        }
+
+        public int getDimensionGracePeriod() {
+            return dimensionGracePeriod;
+        }
+
+        public int getMaxTeleportsPerTick() {
+            return maxTeleportsPerTick;
+        }
+
+        public int getTeleportTimePerTick() {
+            return teleportTimePerTick;
+        }
+
+        public boolean isRandomTeleportEnabled() {
+            return randomTeleportEnabled;
+        }
+
+        public List<Integer> getRandomTeleportDimensions() {
+            return randomTeleportDimensions;
+        }
+
+        public int getRandomTeleportRadius() {
+            return randomTeleportRadius;
+        }
+
+        public int getRandomTeleportPoolSize() {
+            return randomTeleportPoolSize;
+        }
+
+        public int getRandomTeleportTimePerTick() {
+            return randomTeleportTimePerTick;
+        }
+
+        public Map<String, Integer> getCooldowns() {
+            return cooldowns;
+        }
+
+        private static Map<String, Integer> defaultCooldowns() {
+            final Map<String, Integer> cooldowns = new LinkedHashMap<>();
+            cooldowns.put("home", 0);
+            cooldowns.put("rtp", 0);
+            cooldowns.put("teleport", 0);
+            cooldowns.put("warp", 0);
+            return cooldowns;
+        }
+    }
+
+    @ConfigSerializable
+    public static class StorageCategory extends Category {
+
+        @Setting(value = "save-interval",
+                comment = "Number of milliseconds to wait after a change before writing a data file. All changes made in that time are written at once")
+        private long saveInterval = 5000;
+
+        @Setting(value = "home-storage",
+                comment = "How homes are stored. JSON rewrites homes.json after changes. BINARY rewrites homes.bin, a compact binary file, after changes. "
+                        + "JOURNAL appends each change to a journal that is compacted into homes.json in the background. "
+                        + "MAPPED keeps homes in homes.dat, a memory-mapped binary table that is updated in place and doesn't need to be parsed at startup. "
+                        + "PER_PLAYER keeps each player's homes in their own file under homes/ and only loads them when they log in. It is the only mode that supports named homes, "
+                        + "switch to it to let players set more than one home. "
+                        + "Existing homes are imported when this is changed and the old files are retired, so older versions of ServerTools won't see them")
+        private StorageMode homeStorage = StorageMode.JSON;
+
+        @Setting(value = "teleport-storage",
+                comment = "How teleports are stored. One of JSON, BINARY or JOURNAL, see home-storage")
+        private StorageMode teleportStorage = StorageMode.JSON;
+
+        @Setting(value = "silence-storage", comment = "How the list of silenced players is stored. One of JSON, BINARY or JOURNAL, see home-storage")
+        private StorageMode silenceStorage = StorageMode.JSON;
+
+        @Setting(value = "journal-compact-threshold", comment = "Size in bytes a journal may grow to before it is compacted into a fresh snapshot")
+        private long journalCompactThreshold = 1048576;
+
+        @Setting(value = "player-cache-size",
+                comment = "Number of logged out players to keep in memory when a feature uses PER_PLAYER storage. Online players are always kept")
+        private int playerCacheSize = 256;
+
+        public long getSaveInterval() {
+            return saveInterval;
+        }
+
+        public StorageMode getHomeStorage() {
+            return homeStorage;
+        }
+
+        public StorageMode getTeleportStorage() {
+            return teleportStorage;
+        }
+
+        public StorageMode getSilenceStorage() {
+            return silenceStorage;
+        }
+
+        public long getJournalCompactThreshold() {
+            return journalCompactThreshold;
+        }
+
+        public int getPlayerCacheSize() {
+            return playerCacheSize;
+        }
     }
 
     @ConfigSerializable
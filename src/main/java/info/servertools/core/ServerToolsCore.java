@@ -21,22 +21,38 @@ package info.servertools.core;
 import info.servertools.core.feature.Features;
 import info.servertools.core.command.CommandManager;
 import info.servertools.core.feature.*;
+import info.servertools.core.util.CoalescingWriter;
+import info.servertools.core.util.FileWatcher;
 import info.servertools.core.util.STConfig;
 
 import net.minecraft.server.MinecraftServer;
 
+import net.minecraftforge.common.ForgeChunkManager;
 import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.fml.common.FMLCommonHandler;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLServerStartedEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppedEvent;
 import net.minecraftforge.fml.common.registry.GameRegistry;
 
 import ninja.leaping.configurate.objectmapping.ObjectMappingException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
 
 @Mod(
         modid = Constants.MOD_ID,
@@ -48,6 +64,10 @@ import java.nio.file.Path;
 )
 public final class ServerToolsCore {
 
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int INIT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     @Mod.Instance(Constants.MOD_ID)
     private static ServerToolsCore instance;
 
@@ -57,35 +77,114 @@ public final class ServerToolsCore {
 
     @Mod.EventHandler
     public void onPreInit(final FMLPreInitializationEvent event) throws IOException, ObjectMappingException {
+        final long start = System.nanoTime();
         final File modConfigDir = event.getModConfigurationDirectory();
         this.configDir = modConfigDir.toPath().resolve("ServerTools-CORE");
         this.coreConfig = new STConfig<>(configDir.resolve("ServerTools-CORE.conf"), CoreConfig.class);
 
-        this.commandManager = new CommandManager(configDir.resolve("commands.conf"));
-
         final CoreConfig config = coreConfig.getConfig();
 
-        if (config.getChat().isMotdEnabled()) {
-            final Motd motd = new Motd(configDir.resolve("motd.txt"));
-            Features.register(Motd.class, motd);
-            MinecraftForge.EVENT_BUS.register(motd);
+        final JoinScheduler joinScheduler = new JoinScheduler();
+        Features.register(JoinScheduler.class, joinScheduler);
+        FMLCommonHandler.instance().bus().register(joinScheduler);
+
+        // Features don't depend on each other while loading, so their files are read in parallel
+        final ExecutorService initPool = Executors.newFixedThreadPool(INIT_THREADS, r -> new Thread(r, "ServerTools Init Thread"));
+        try {
+            final Future<CommandManager> commandManager = load(initPool, "commands", () -> new CommandManager(configDir.resolve("commands.conf")));
+            @Nullable final Future<Motd> motd = config.getChat().isMotdEnabled()
+                    ? load(initPool, "motd", () -> new Motd(configDir.resolve("motd.txt"), joinScheduler)) : null;
+            @Nullable final Future<TeleportHandler> teleportHandler = config.getTeleport().isTeleportsEnabled()
+                    ? load(initPool, "teleports", () -> new TeleportHandler(configDir.resolve("teleports.json"))) : null;
+            @Nullable final Future<HomeHandler> homeHandler = config.getTeleport().isHomesEnabled()
+                    ? load(initPool, "homes", () -> new HomeHandler(configDir.resolve("homes.json"))) : null;
+            @Nullable final Future<SilenceHandler> silenceHandler = config.getChat().isSilenceEnabled()
+                    ? load(initPool, "silence", () -> new SilenceHandler(configDir.resolve("silences.json"))) : null;
+
+            // Register in a fixed order no matter which feature finished loading first
+            this.commandManager = await(commandManager);
+
+            @Nullable Motd motdInstance = null;
+            if (motd != null) {
+                motdInstance = await(motd);
+                Features.register(Motd.class, motdInstance);
+                FMLCommonHandler.instance().bus().register(motdInstance); // Login events are only posted on the FML bus
+            }
+
+            if (teleportHandler != null) {
+                Features.register(TeleportHandler.class, await(teleportHandler));
+            }
+
+            if (homeHandler != null) {
+                final HomeHandler instance = await(homeHandler);
+                Features.register(HomeHandler.class, instance);
+                FMLCommonHandler.instance().bus().register(instance);
+                if (motdInstance != null) instance.registerPlaceholders(motdInstance.getPlaceholders());
+            }
+
+            if (config.getTeleport().isTeleportsEnabled() || config.getTeleport().isHomesEnabled()) {
+                final DimensionWarmup dimensions = new DimensionWarmup();
+                Features.register(DimensionWarmup.class, dimensions);
+                FMLCommonHandler.instance().bus().register(dimensions);
+                MinecraftForge.EVENT_BUS.register(dimensions);
+
+                final TeleportPipeline pipeline = new TeleportPipeline(dimensions);
+                Features.register(TeleportPipeline.class, pipeline);
+                FMLCommonHandler.instance().bus().register(pipeline);
+                ForgeChunkManager.setForcedChunkLoadingCallback(this, pipeline);
+
+                final TeleportTimerHandler instance = new TeleportTimerHandler(pipeline);
+                Features.register(TeleportTimerHandler.class, instance);
+                FMLCommonHandler.instance().bus().register(instance);
+                MinecraftForge.EVENT_BUS.register(instance);
+
+                if (config.getTeleport().isRandomTeleportEnabled()) {
+                    final RandomTeleportPool randomPool = new RandomTeleportPool();
+                    Features.register(RandomTeleportPool.class, randomPool);
+                    FMLCommonHandler.instance().bus().register(randomPool);
+                    MinecraftForge.EVENT_BUS.register(randomPool);
+                }
+            }
+
+            if (silenceHandler != null) {
+                final SilenceHandler instance = await(silenceHandler);
+                Features.register(SilenceHandler.class, instance);
+                FMLCommonHandler.instance().bus().register(instance);
+                MinecraftForge.EVENT_BUS.register(instance);
+            }
+        } finally {
+            initPool.shutdown();
         }
 
-        if (config.getTeleport().isTeleportsEnabled()) {
-            Features.register(TeleportHandler.class, new TeleportHandler(configDir.resolve("teleports.json")));
-        }
+        this.commandManager.gatherCommands(event.getAsmData());
+        log.info("Pre-initialization took {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
 
-        if (config.getTeleport().isHomesEnabled()) {
-            Features.register(HomeHandler.class, new HomeHandler(configDir.resolve("homes.json")));
-        }
+    private static <T> Future<T> load(final ExecutorService pool, final String name, final Callable<T> loader) {
+        return pool.submit(() -> {
+            final long start = System.nanoTime();
+            final T feature = loader.call();
+            log.info("Loaded {} in {} ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return feature;
+        });
+    }
 
-        if (config.getChat().isSilenceEnabled()) {
-            final SilenceHandler silenceHandler = new SilenceHandler(configDir.resolve("silenced.json"));
-            Features.register(SilenceHandler.class, silenceHandler);
-            MinecraftForge.EVENT_BUS.register(silenceHandler);
+    /**
+     * Wait for a feature to load, and rethrow whatever it failed with as if it had been loaded on this thread
+     */
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
         }
-
-        this.commandManager.gatherCommands(event.getAsmData());
     }
 
     @Mod.EventHandler
@@ -98,6 +197,20 @@ public final class ServerToolsCore {
     @Mod.EventHandler
     public void onServerStarted(final FMLServerStartedEvent event) {
         this.commandManager.doRegister(MinecraftServer.getServer());
+        try {
+            coreConfig.watch();
+            commandManager.watch();
+            final Optional<Motd> motd = Features.getService(Motd.class);
+            if (motd.isPresent()) motd.get().watch();
+        } catch (IOException e) {
+            log.warn("Can't watch the configuration files for changes, changing them needs a restart", e);
+        }
+    }
+
+    @Mod.EventHandler
+    public void onServerStopped(final FMLServerStoppedEvent event) {
+        FileWatcher.shutDown();
+        CoalescingWriter.flushAll();
     }
 
     public CoreConfig getConfig() {
@@ -58,7 +58,7 @@ public class CommandEditTeleport extends STCommand {
             case 1:
                 return getListOfStringsMatchingLastWord(args, "set", "delete");
             case 2:
-                return "delete".equals(args[0]) ? getListOfStringsMatchingLastWord(args, teleportHandler.getTeleportNames()) : null;
+                return "delete".equals(args[0]) ? teleportHandler.completeTeleportName(args[1]) : null;
             default:
                 return null;
         }
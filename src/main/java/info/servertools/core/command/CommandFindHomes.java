@@ -0,0 +1,93 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.command;
+
+import info.servertools.core.feature.Features;
+import info.servertools.core.feature.HomeHandler;
+import info.servertools.core.util.Location;
+import info.servertools.core.util.ServerUtils;
+
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.EnumChatFormatting;
+
+import java.util.Map;
+
+/**
+ * Lists the homes inside an area, so their owners can be warned before the area is reset
+ */
+@Command(
+        name = "findhomes",
+        opRequired = true,
+        requiredFeatures = { HomeHandler.class }
+)
+public class CommandFindHomes extends STCommand {
+
+    private static final int MAX_LISTED = 20;
+
+    private final HomeHandler homeHandler;
+
+    public CommandFindHomes() {
+        this.homeHandler = Features.getService(HomeHandler.class).get();
+    }
+
+    @Override
+    public String getCommandUsage(final ICommandSender sender) {
+        return "/" + getCommandName() + " <dim> <x1> <z1> <x2> <z2>";
+    }
+
+    @Override
+    public void processCommand(final ICommandSender sender, final String[] args) throws CommandException {
+        if (args.length != 5) throw new WrongUsageException(getCommandUsage(sender));
+        final int dim = parseInt(args[0]);
+        final double x1 = parseDouble(args[1]);
+        final double z1 = parseDouble(args[2]);
+        final double x2 = parseDouble(args[3]);
+        final double z2 = parseDouble(args[4]);
+        if (!homeHandler.isIndexed()) sender.addChatMessage(new ChatComponentText("Indexing homes, the results will follow"));
+        homeHandler.buildIndex(indexed -> {
+            if (indexed) {
+                listHomes(sender, homeHandler.getHomesWithin(dim, x1, z1, x2, z2).get());
+            } else {
+                final ChatComponentText text = new ChatComponentText("Failed to read the homes, see the server log");
+                text.getChatStyle().setColor(EnumChatFormatting.RED);
+                sender.addChatMessage(text);
+            }
+        });
+    }
+
+    private static void listHomes(final ICommandSender sender, final Map<HomeHandler.HomeId, Location> homes) {
+        sender.addChatMessage(new ChatComponentText(homes.size() + (homes.size() == 1 ? " home" : " homes") + " in that area"));
+        int listed = 0;
+        for (Map.Entry<HomeHandler.HomeId, Location> entry : homes.entrySet()) {
+            if (listed++ == MAX_LISTED) {
+                sender.addChatMessage(new ChatComponentText(" and " + (homes.size() - MAX_LISTED) + " more"));
+                break;
+            }
+            final HomeHandler.HomeId id = entry.getKey();
+            final Location location = entry.getValue();
+            final String owner = ServerUtils.getPlayerForUUID(id.getUUID()).map(EntityPlayerMP::getName).orElse(id.getUUID().toString());
+            sender.addChatMessage(new ChatComponentText(String.format(" %s: %s at %.0f, %.0f, %.0f",
+                    owner, id.getName(), location.getX(), location.getY(), location.getZ())));
+        }
+    }
+}
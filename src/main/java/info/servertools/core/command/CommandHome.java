@@ -20,48 +20,85 @@ package info.servertools.core.command;
 
 import info.servertools.core.feature.Features;
 import info.servertools.core.feature.HomeHandler;
+import info.servertools.core.feature.TeleportTimerHandler;
 import info.servertools.core.util.Location;
-import info.servertools.core.util.PlayerUtils;
 
 import net.minecraft.command.CommandException;
 import net.minecraft.command.ICommandSender;
 import net.minecraft.command.WrongUsageException;
 import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.BlockPos;
 import net.minecraft.util.ChatComponentText;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
 @Command(
         name = "home",
         opRequired = false,
-        requiredFeatures = { HomeHandler.class }
+        requiredFeatures = { HomeHandler.class, TeleportTimerHandler.class }
 )
 public class CommandHome extends STCommand {
 
     private final HomeHandler homeHandler;
+    private final TeleportTimerHandler timerHandler;
 
     public CommandHome() {
         this.homeHandler = Features.getService(HomeHandler.class).get();
+        this.timerHandler = Features.getService(TeleportTimerHandler.class).get();
     }
 
     @Override
     public String getCommandUsage(final ICommandSender sender) {
-        return "/" + getCommandName() + " [set|delete]";
+        return "/" + getCommandName() + " [name|set [name]|delete [name]|list]";
+    }
+
+    @Nullable
+    @Override
+    public List<String> addTabCompletionOptions(final ICommandSender sender, final String[] args, final BlockPos pos) {
+        if (!(sender instanceof EntityPlayerMP)) return null;
+        // Only the sub commands until the player's homes are loaded
+        final Set<String> names = homeHandler.getHomeNames(((EntityPlayerMP) sender).getPersistentID()).orElse(Collections.emptySet());
+        if (args.length <= 1) {
+            final List<String> options = new ArrayList<>(names);
+            options.add("set");
+            options.add("delete");
+            options.add("list");
+            return getListOfStringsMatchingLastWord(args, options);
+        } else if (args.length == 2 && ("set".equals(args[0]) || "delete".equals(args[0]))) {
+            return getListOfStringsMatchingLastWord(args, names);
+        } else {
+            return null;
+        }
     }
 
     @Override
     public void processCommand(final ICommandSender sender, final String[] args) throws CommandException {
         final EntityPlayerMP player = requirePlayer(sender);
-        if (args.length == 0) {
-            final Location home = homeHandler.getHome(player.getPersistentID())
-                    .orElseThrow(() -> new CommandException("You don't have a home set"));
-            PlayerUtils.teleportPlayer(player, home);
-            player.addChatMessage(new ChatComponentText("Teleported home"));
-        } else if (args.length == 1) {
+        final UUID uuid = player.getPersistentID();
+        if (args.length == 0 || (args.length == 1 && !isSubCommand(args[0]))) {
+            final String name = args.length == 0 ? HomeHandler.DEFAULT_HOME : args[0];
+            final Location home = homeHandler.getHome(uuid, name)
+                    .orElseThrow(() -> new CommandException(args.length == 0 ? "You don't have a home set" : "You don't have a home named " + name));
+            timerHandler.teleport(player, getCommandName(), home, () -> player.addChatMessage(new ChatComponentText("Teleported home")));
+        } else if (args.length <= 2) {
+            final String name = args.length == 2 ? args[1] : HomeHandler.DEFAULT_HOME;
             if ("set".equals(args[0])) {
-                HomeHandler.EditHomeResult result = homeHandler.setHome(player.getPersistentID(), new Location(player));
+                if (isSubCommand(name)) throw new CommandException("You can't name a home " + name);
+                HomeHandler.EditHomeResult result = homeHandler.setHome(uuid, name, new Location(player));
                 player.addChatMessage(result.toChat());
             } else if ("delete".equals(args[0])) {
-                HomeHandler.EditHomeResult result = homeHandler.deleteHome(player.getPersistentID());
+                HomeHandler.EditHomeResult result = homeHandler.deleteHome(uuid, name);
                 player.addChatMessage(result.toChat());
+            } else if ("list".equals(args[0]) && args.length == 1) {
+                final Set<String> names = homeHandler.getHomeNames(uuid)
+                        .orElseThrow(() -> new CommandException("Your homes are still loading, try again in a moment"));
+                player.addChatMessage(new ChatComponentText(names.isEmpty() ? "You don't have any homes set" : "Homes: " + String.join(", ", names)));
             } else {
                 throw new WrongUsageException(getCommandUsage(sender));
             }
@@ -69,4 +106,8 @@ public class CommandHome extends STCommand {
             throw new WrongUsageException(getCommandUsage(sender));
         }
     }
+
+    private static boolean isSubCommand(final String arg) {
+        return "set".equals(arg) || "delete".equals(arg) || "list".equals(arg);
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.command;
+
+import static net.minecraft.util.EnumChatFormatting.AQUA;
+import static net.minecraft.util.EnumChatFormatting.RED;
+
+import info.servertools.core.util.CoalescingWriter;
+import info.servertools.core.util.FileIO;
+import info.servertools.core.util.IOMetrics;
+import info.servertools.core.util.LatencyHistogram;
+
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.util.ChatComponentText;
+
+import java.util.TreeMap;
+
+@Command(
+        name = "stio",
+        opRequired = true
+)
+public class CommandIOStats extends STCommand {
+
+    @Override
+    public String getCommandUsage(final ICommandSender sender) {
+        return "/" + getCommandName();
+    }
+
+    @Override
+    public void processCommand(final ICommandSender sender, final String[] args) throws CommandException {
+        sender.addChatMessage(new ChatComponentText(AQUA + "-- IO Summary --"));
+        sender.addChatMessage(new ChatComponentText("  Threads: " + FileIO.getThreadCount()
+                + " Queued: " + FileIO.getQueueDepth() + " Active Files: " + FileIO.getActiveLanes()));
+        for (IOMetrics metrics : new TreeMap<>(FileIO.getMetrics()).values()) {
+            sender.addChatMessage(new ChatComponentText((metrics.getFailed() > 0 ? RED : AQUA) + "  " + metrics.getType()
+                    + ": queued " + metrics.getQueued() + ", running " + metrics.getRunning() + ", done " + metrics.getCompleted()
+                    + ", failed " + metrics.getFailed() + ", cancelled " + metrics.getCancelled()));
+            sender.addChatMessage(new ChatComponentText("    Wait " + format(metrics.getQueueLatency())));
+            sender.addChatMessage(new ChatComponentText("    Run " + format(metrics.getRunLatency())));
+        }
+
+        long changes = 0, writes = 0, failures = 0;
+        for (CoalescingWriter writer : CoalescingWriter.getWriters()) {
+            changes += writer.getDirtyCount();
+            writes += writer.getWriteCount();
+            failures += writer.getFailureCount();
+        }
+        sender.addChatMessage(new ChatComponentText("  Data files: " + changes + " changes saved by " + writes + " writes, "
+                + failures + " failed"));
+    }
+
+    static String format(final LatencyHistogram histogram) {
+        return "p50 " + formatMicros(histogram.getPercentile(50))
+                + ", p90 " + formatMicros(histogram.getPercentile(90))
+                + ", p99 " + formatMicros(histogram.getPercentile(99))
+                + ", max " + formatMicros(histogram.getMax());
+    }
+
+    private static String formatMicros(final long micros) {
+        if (micros < 1000) return micros + "us";
+        if (micros < 1000000) return String.format("%.1fms", micros / 1000D);
+        return String.format("%.2fs", micros / 1000000D);
+    }
+}
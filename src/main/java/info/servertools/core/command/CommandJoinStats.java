@@ -0,0 +1,58 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.command;
+
+import static net.minecraft.util.EnumChatFormatting.AQUA;
+
+import info.servertools.core.feature.Features;
+import info.servertools.core.feature.JoinScheduler;
+
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.util.ChatComponentText;
+
+@Command(
+        name = "stjoin",
+        opRequired = true,
+        requiredFeatures = { JoinScheduler.class }
+)
+public class CommandJoinStats extends STCommand {
+
+    private final JoinScheduler joinScheduler;
+
+    public CommandJoinStats() {
+        this.joinScheduler = Features.getService(JoinScheduler.class).get();
+    }
+
+    @Override
+    public String getCommandUsage(final ICommandSender sender) {
+        return "/" + getCommandName();
+    }
+
+    @Override
+    public void processCommand(final ICommandSender sender, final String[] args) throws CommandException {
+        sender.addChatMessage(new ChatComponentText(AQUA + "-- Join Work Summary --"));
+        sender.addChatMessage(new ChatComponentText("  Queued: " + joinScheduler.getQueueLength() + " tasks for " + joinScheduler.getPlayerCount()
+                + " players"));
+        sender.addChatMessage(new ChatComponentText("  Done: " + joinScheduler.getCompletedCount() + " Failed: " + joinScheduler.getFailedCount()
+                + " Dropped: " + joinScheduler.getDroppedCount()));
+        sender.addChatMessage(new ChatComponentText("    Wait " + CommandIOStats.format(joinScheduler.getWaitLatency())));
+        sender.addChatMessage(new ChatComponentText("    Run " + CommandIOStats.format(joinScheduler.getRunLatency())));
+    }
+}
@@ -20,6 +20,7 @@ package info.servertools.core.command;
 
 import info.servertools.core.feature.Features;
 import info.servertools.core.ServerToolsCore;
+import info.servertools.core.util.FileWatcher;
 
 import net.minecraft.command.CommandHandler;
 import net.minecraft.command.CommandHelp;
@@ -164,6 +165,32 @@ public final class CommandManager {
         }
     }
 
+    /**
+     * Reload the command configuration whenever the file is changed on disk. Changes to whether a command needs op take effect
+     * immediately, renamed and disabled commands only after a restart.
+     *
+     * @throws IOException If the file can't be watched
+     */
+    public void watch() throws IOException {
+        FileWatcher.watch(configFile, file -> loader.load(ConfigurationOptions.defaults().setHeader(HEADER)), this::reloadConfig);
+    }
+
+    private void reloadConfig(final CommentedConfigurationNode node) {
+        this.node = node;
+        for (final STCommand command : commands) {
+            final CommentedConfigurationNode commandNode = node.getNode(command.getClass().getName());
+            final boolean opRequired = commandNode.getNode("op-required").getBoolean(command.isOpRequired());
+            if (opRequired != command.isOpRequired()) {
+                ObfuscationReflectionHelper.setPrivateValue(STCommand.class, command, opRequired, "opRequired");
+                log.info("Command {} now {} op", command.getCommandName(), opRequired ? "requires" : "doesn't require");
+            }
+            if (!commandNode.getNode("enable-command").getBoolean(true)
+                    || !command.getCommandName().equals(commandNode.getNode("command-name").getString(command.getCommandName()))) {
+                log.warn("Command {} was renamed or disabled, which takes effect after a restart", command.getCommandName());
+            }
+        }
+    }
+
     private void saveConfig() {
         try {
             loader.save(node);
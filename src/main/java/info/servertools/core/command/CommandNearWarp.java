@@ -0,0 +1,75 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.command;
+
+import info.servertools.core.feature.Features;
+import info.servertools.core.feature.TeleportHandler;
+import info.servertools.core.util.Location;
+
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.ChatComponentText;
+
+import java.util.List;
+
+@Command(
+        name = "nearwarp",
+        opRequired = false,
+        requiredFeatures = { TeleportHandler.class }
+)
+public class CommandNearWarp extends STCommand {
+
+    private static final int DEFAULT_COUNT = 5;
+    private static final int MAX_COUNT = 20;
+
+    private final TeleportHandler teleportHandler;
+
+    public CommandNearWarp() {
+        this.teleportHandler = Features.getService(TeleportHandler.class).get();
+    }
+
+    @Override
+    public String getCommandUsage(final ICommandSender sender) {
+        return "/" + getCommandName() + " [count]";
+    }
+
+    @Override
+    public void processCommand(final ICommandSender sender, final String[] args) throws CommandException {
+        if (args.length > 1) throw new WrongUsageException(getCommandUsage(sender));
+        final EntityPlayerMP player = requirePlayer(sender);
+        final int count = args.length == 1 ? parseInt(args[0], 1, MAX_COUNT) : DEFAULT_COUNT;
+        final Location here = new Location(player);
+        final List<String> names = teleportHandler.getNearestTeleports(here, count);
+        if (names.isEmpty()) {
+            throw new CommandException("There are no teleports in this dimension");
+        }
+        player.addChatMessage(new ChatComponentText("Closest teleports:"));
+        for (String name : names) {
+            teleportHandler.getTeleport(name).ifPresent(location -> player.addChatMessage(new ChatComponentText(
+                    " " + name + " - " + Math.round(distance(here, location)) + " blocks")));
+        }
+    }
+
+    private static double distance(final Location a, final Location b) {
+        final double dx = a.getX() - b.getX(), dy = a.getY() - b.getY(), dz = a.getZ() - b.getZ();
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.command;
+
+import info.servertools.core.feature.Features;
+import info.servertools.core.feature.RandomTeleportPool;
+import info.servertools.core.feature.TeleportTimerHandler;
+import info.servertools.core.util.Location;
+
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.ChatComponentText;
+
+@Command(
+        name = "rtp",
+        opRequired = false,
+        requiredFeatures = { RandomTeleportPool.class, TeleportTimerHandler.class }
+)
+public class CommandRandomTeleport extends STCommand {
+
+    private final RandomTeleportPool pool;
+    private final TeleportTimerHandler timerHandler;
+
+    public CommandRandomTeleport() {
+        this.pool = Features.getService(RandomTeleportPool.class).get();
+        this.timerHandler = Features.getService(TeleportTimerHandler.class).get();
+    }
+
+    @Override
+    public String getCommandUsage(final ICommandSender sender) {
+        return "/" + getCommandName();
+    }
+
+    @Override
+    public void processCommand(final ICommandSender sender, final String[] args) throws CommandException {
+        if (args.length != 0) throw new WrongUsageException(getCommandUsage(sender));
+        final EntityPlayerMP player = requirePlayer(sender);
+        final int dimId = player.worldObj.provider.getDimensionId();
+        if (!pool.hasPool(dimId)) throw new CommandException("You can't teleport randomly in this dimension");
+        final Location location = pool.take(dimId)
+                .orElseThrow(() -> new CommandException("No random places are ready yet, try again in a few seconds"));
+        try {
+            timerHandler.teleport(player, getCommandName(), location, () -> player.addChatMessage(new ChatComponentText(
+                    "Teleported to " + (int) location.getX() + ", " + (int) location.getY() + ", " + (int) location.getZ())));
+        } catch (CommandException e) {
+            // Still cooling down, keep the location for the next player
+            pool.putBack(location);
+            throw e;
+        }
+    }
+}
@@ -32,6 +32,7 @@ import com.mojang.authlib.GameProfile;
 
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -50,7 +51,7 @@ public class CommandSilence extends STCommand {
 
     @Override
     public String getCommandUsage(final ICommandSender sender) {
-        return "/" + getCommandName() + " <add|remove> <player>";
+        return "/" + getCommandName() + " <add|remove> <player> [duration, like 30s, 10m, 2h or 1d]";
     }
 
     @Nullable
@@ -67,10 +68,15 @@ public class CommandSilence extends STCommand {
 
     @Override
     public void processCommand(final ICommandSender sender, final String[] args) throws CommandException {
-        if (args.length != 2) throw new WrongUsageException(getCommandUsage(sender));
+        if (args.length != 2 && !(args.length == 3 && "add".equals(args[0]))) throw new WrongUsageException(getCommandUsage(sender));
         GameProfile gameProfile = ServerUtils.getGameProfile(args[1]).orElseThrow(PlayerNotFoundException::new);
         final UUID uuid = gameProfile.getId();
-        if ("add".equals(args[0])) {
+        if ("add".equals(args[0]) && args.length == 3) {
+            final long duration = parseDuration(args[2]);
+            final boolean added = silenceHandler.addSilence(uuid, duration, TimeUnit.SECONDS);
+            notifyOperators(sender, this, added ? "Silenced %s for %s" : "%s is now silenced for %s", args[1],
+                    SilenceHandler.formatDuration(TimeUnit.SECONDS.toMillis(duration)));
+        } else if ("add".equals(args[0])) {
             if (silenceHandler.addSilence(uuid)) {
                 notifyOperators(sender, this, "Silenced %s", args[1]);
             } else {
@@ -86,4 +92,35 @@ public class CommandSilence extends STCommand {
             throw new WrongUsageException(getCommandUsage(sender));
         }
     }
+
+    /**
+     * Parse a duration such as {@code 90s}, {@code 10m}, {@code 2h} or {@code 1d}. A number without a unit is in minutes.
+     *
+     * @param arg The duration
+     *
+     * @return The duration in seconds
+     *
+     * @throws CommandException If the duration is invalid
+     */
+    private static long parseDuration(final String arg) throws CommandException {
+        final char unit = arg.isEmpty() ? ' ' : Character.toLowerCase(arg.charAt(arg.length() - 1));
+        final long multiplier;
+        switch (unit) {
+            case 's':
+                multiplier = 1;
+                break;
+            case 'm':
+                multiplier = 60;
+                break;
+            case 'h':
+                multiplier = 60 * 60;
+                break;
+            case 'd':
+                multiplier = 24 * 60 * 60;
+                break;
+            default:
+                return parseInt(arg, 1) * 60L;
+        }
+        return parseInt(arg.substring(0, arg.length() - 1), 1) * multiplier;
+    }
 }
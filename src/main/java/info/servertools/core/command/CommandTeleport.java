@@ -21,8 +21,8 @@ package info.servertools.core.command;
 import info.servertools.core.feature.Features;
 import info.servertools.core.ServerToolsCore;
 import info.servertools.core.feature.TeleportHandler;
+import info.servertools.core.feature.TeleportTimerHandler;
 import info.servertools.core.util.Location;
-import info.servertools.core.util.PlayerUtils;
 
 import net.minecraft.command.CommandException;
 import net.minecraft.command.ICommandSender;
@@ -37,14 +37,16 @@ import javax.annotation.Nullable;
 @Command(
         name = "teleport",
         opRequired = false,
-        requiredFeatures = { TeleportHandler.class }
+        requiredFeatures = { TeleportHandler.class, TeleportTimerHandler.class }
 )
 public class CommandTeleport extends STCommand {
 
     private final TeleportHandler teleportHandler;
+    private final TeleportTimerHandler timerHandler;
 
     public CommandTeleport() {
         this.teleportHandler = Features.getService(TeleportHandler.class).get();
+        this.timerHandler = Features.getService(TeleportTimerHandler.class).get();
     }
 
     @Override
@@ -55,7 +57,7 @@ public class CommandTeleport extends STCommand {
     @Nullable
     @Override
     public List<String> addTabCompletionOptions(final ICommandSender sender, final String[] args, final BlockPos pos) {
-        return getListOfStringsMatchingLastWord(args, teleportHandler.getTeleportNames());
+        return args.length <= 1 ? teleportHandler.completeTeleportName(args.length == 0 ? "" : args[0]) : null;
     }
 
     @Override
@@ -68,6 +70,6 @@ public class CommandTeleport extends STCommand {
             throw new CommandException("Teleporting to a different dimension is disabled");
         }
 
-        PlayerUtils.teleportPlayer(player, teleport);
+        timerHandler.teleport(player, getCommandName(), teleport, () -> teleportHandler.recordUse(args[0]));
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.command;
+
+import static net.minecraft.util.EnumChatFormatting.AQUA;
+
+import info.servertools.core.feature.DimensionWarmup;
+import info.servertools.core.feature.Features;
+import info.servertools.core.feature.RandomTeleportPool;
+import info.servertools.core.feature.TeleportPipeline;
+import info.servertools.core.util.PlayerUtils;
+import info.servertools.core.util.SafeLanding;
+
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.util.ChatComponentText;
+
+@Command(
+        name = "sttp",
+        opRequired = true,
+        requiredFeatures = { TeleportPipeline.class, DimensionWarmup.class }
+)
+public class CommandTeleportStats extends STCommand {
+
+    private final TeleportPipeline pipeline;
+    private final DimensionWarmup dimensions;
+
+    public CommandTeleportStats() {
+        this.pipeline = Features.getService(TeleportPipeline.class).get();
+        this.dimensions = Features.getService(DimensionWarmup.class).get();
+    }
+
+    @Override
+    public String getCommandUsage(final ICommandSender sender) {
+        return "/" + getCommandName();
+    }
+
+    @Override
+    public void processCommand(final ICommandSender sender, final String[] args) throws CommandException {
+        sender.addChatMessage(new ChatComponentText(AQUA + "-- Teleport Summary --"));
+        sender.addChatMessage(new ChatComponentText("  Teleports: " + pipeline.getTeleportCount() + " Waiting: " + pipeline.getPendingCount()
+                + " Queued: " + pipeline.getQueuedCount() + " Timed out: " + pipeline.getTimeoutCount()
+                + " Abandoned: " + pipeline.getAbandonedCount() + " Unsafe: " + pipeline.getUnsafeCount()));
+        sender.addChatMessage(new ChatComponentText("  Chunks: " + pipeline.getChunksRequested() + " requested, "
+                + pipeline.getChunksAlreadyLoaded() + " already loaded"));
+        sender.addChatMessage(new ChatComponentText("    Preload " + CommandIOStats.format(pipeline.getPreloadLatency())));
+        sender.addChatMessage(new ChatComponentText("    In line " + CommandIOStats.format(pipeline.getQueueLatency())));
+        sender.addChatMessage(new ChatComponentText("    Move " + CommandIOStats.format(pipeline.getMoveLatency())));
+        sender.addChatMessage(new ChatComponentText("  Safe landing: " + SafeLanding.getHitCount() + " cached, " + SafeLanding.getMissCount()
+                + " searched, " + SafeLanding.getInvalidationCount() + " invalidated, " + SafeLanding.getCachedCount() + " in cache"));
+        Features.getService(RandomTeleportPool.class).ifPresent(pool -> {
+            final long requests = pool.getHitCount() + pool.getMissCount();
+            sender.addChatMessage(new ChatComponentText("  Random: " + pool.getHitCount() + " served from pool, " + pool.getMissCount() + " found it empty"
+                    + (requests == 0 ? "" : " (" + 100 * pool.getHitCount() / requests + "% hit rate)")));
+            sender.addChatMessage(new ChatComponentText("    Candidates: " + pool.getTriedCount() + " tried, " + pool.getAcceptedCount() + " safe, "
+                    + pool.getPooledCount(sender.getEntityWorld().provider.getDimensionId()) + " ready here"));
+        });
+        sender.addChatMessage(new ChatComponentText("  Dimensions: " + dimensions.getHitCount() + " already loaded, "
+                + dimensions.getLoadCount() + " loaded, " + dimensions.getHeldCount() + " kept loaded"));
+        sender.addChatMessage(new ChatComponentText("    Load " + CommandIOStats.format(dimensions.getLoadLatency())));
+        for (PlayerUtils.TransferPhase phase : PlayerUtils.TransferPhase.values()) {
+            sender.addChatMessage(new ChatComponentText("    Transfer " + phase.name().toLowerCase() + " " + CommandIOStats.format(phase.getLatency())));
+        }
+    }
+}
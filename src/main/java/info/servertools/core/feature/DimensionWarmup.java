@@ -0,0 +1,229 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.feature;
+
+import info.servertools.core.CoreConfig;
+import info.servertools.core.ServerToolsCore;
+import info.servertools.core.util.LatencyHistogram;
+import info.servertools.core.util.ServerUtils;
+import info.servertools.core.util.TimingWheel;
+
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.WorldServer;
+
+import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.common.ForgeChunkManager;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Loads dimensions ahead of the players that teleport into them, and keeps them loaded for a while afterwards.
+ * <p>
+ * Loading a dimension can take seconds on large modpacks, and Forge unloads a dimension again as soon as nobody is in it. The configured warm
+ * dimensions are loaded one per tick once the server is running and stay loaded. Any other dimension is kept loaded for the grace period
+ * after each teleport into it. A dimension is held by forcing its spawn chunk with a ticket, which Forge respects when deciding what to
+ * unload. Dimensions that Forge keeps loaded anyway, such as the overworld, are never held so they don't use up the mod's tickets.
+ * </p>
+ * <p>
+ * Everything happens on the server thread.
+ * </p>
+ */
+public class DimensionWarmup {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final TimingWheel wheel = new TimingWheel(1024);
+    private final Set<Integer> warmDimensions;
+    private final Deque<Integer> toWarm;
+    private final long graceTicks;
+    private final Map<Integer, Hold> holds = new HashMap<>();
+
+    private final LatencyHistogram loadLatency = new LatencyHistogram();
+    private long hits;
+    private long loads;
+
+    public DimensionWarmup() {
+        final CoreConfig.TeleportCategory config = ServerToolsCore.instance().getConfig().getTeleport();
+        this.warmDimensions = new LinkedHashSet<>(config.getWarmDimensions());
+        this.toWarm = new ArrayDeque<>(warmDimensions);
+        this.graceTicks = Math.max(0, config.getDimensionGracePeriod()) * 20L;
+    }
+
+    /**
+     * Get the world of a dimension for a teleport, loading it if it isn't loaded, and keep it loaded for the grace period
+     *
+     * @param dimId The dimension Id
+     *
+     * @return The world
+     *
+     * @throws IllegalArgumentException If the dimension doesn't exist
+     */
+    public WorldServer acquire(final int dimId) {
+        @Nullable WorldServer world = DimensionManager.getWorld(dimId);
+        if (world != null) {
+            hits++;
+        } else {
+            world = load(dimId);
+        }
+        hold(dimId, world, warmDimensions.contains(dimId));
+        return world;
+    }
+
+    /**
+     * Check that a dimension exists without loading it, so a teleport can be refused before it is queued
+     *
+     * @param dimId The dimension Id
+     *
+     * @throws IllegalArgumentException If the dimension doesn't exist
+     */
+    public void checkExists(final int dimId) {
+        if (DimensionManager.getWorld(dimId) == null && !DimensionManager.isDimensionRegistered(dimId)) {
+            throw new IllegalArgumentException("Dimension " + dimId + " could not be found or loaded");
+        }
+    }
+
+    private WorldServer load(final int dimId) {
+        final long start = System.nanoTime();
+        final WorldServer world = ServerUtils.getOrLoadWorld(dimId);
+        final long time = System.nanoTime() - start;
+        loadLatency.record(time);
+        loads++;
+        log.debug("Loaded dimension {} in {} ms", dimId, time / 1000000);
+        return world;
+    }
+
+    private void hold(final int dimId, final WorldServer world, final boolean forever) {
+        if (DimensionManager.shouldLoadSpawn(dimId)) return; // Never unloaded
+        @Nullable Hold hold = holds.get(dimId);
+        if (hold == null || hold.world != world) {
+            if (hold != null) hold.release();
+            @Nullable final ForgeChunkManager.Ticket ticket =
+                    ForgeChunkManager.requestTicket(ServerToolsCore.instance(), world, ForgeChunkManager.Type.NORMAL);
+            if (ticket == null) return; // Out of tickets, the dimension will have to be loaded again next time
+            final BlockPos spawn = world.getSpawnPoint();
+            ForgeChunkManager.forceChunk(ticket, new ChunkCoordIntPair(spawn.getX() >> 4, spawn.getZ() >> 4));
+            hold = new Hold(world, ticket);
+            holds.put(dimId, hold);
+        }
+        if (hold.expiry != null) hold.expiry.cancel();
+        if (!forever) {
+            final Hold expiring = hold;
+            hold.expiry = wheel.schedule(graceTicks, () -> {
+                holds.remove(dimId, expiring);
+                expiring.release();
+            });
+        }
+    }
+
+    /**
+     * Get how long loading a dimension took when a teleport or warm-up had to load it
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getLoadLatency() {
+        return loadLatency;
+    }
+
+    /**
+     * Get the number of teleports that found their dimension already loaded
+     *
+     * @return The number of teleports
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of times a dimension had to be loaded
+     *
+     * @return The number of loads
+     */
+    public long getLoadCount() {
+        return loads;
+    }
+
+    /**
+     * Get the number of dimensions that are being kept loaded
+     *
+     * @return The number of dimensions
+     */
+    public int getHeldCount() {
+        return holds.size();
+    }
+
+    @SubscribeEvent
+    public void onServerTick(final TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) return;
+        wheel.tick();
+        if (!toWarm.isEmpty()) {
+            // One dimension per tick, so warming many of them never stalls a single tick for long
+            final int dimId = toWarm.poll();
+            try {
+                @Nullable WorldServer world = DimensionManager.getWorld(dimId);
+                if (world == null) world = load(dimId);
+                hold(dimId, world, true);
+            } catch (IllegalArgumentException e) {
+                log.warn("Can't warm up dimension {}: {}", dimId, e.getMessage());
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(final WorldEvent.Unload event) {
+        if (event.world.isRemote) return;
+        final int dimId = event.world.provider.getDimensionId();
+        @Nullable final Hold hold = holds.get(dimId);
+        if (hold != null && hold.world == event.world) {
+            // Unloaded anyway, for example when the server stops, and the ticket went with it
+            holds.remove(dimId);
+            if (hold.expiry != null) hold.expiry.cancel();
+        }
+    }
+
+    private static final class Hold {
+
+        final WorldServer world;
+        final ForgeChunkManager.Ticket ticket;
+        @Nullable TimingWheel.Timer expiry;
+
+        Hold(final WorldServer world, final ForgeChunkManager.Ticket ticket) {
+            this.world = world;
+            this.ticket = ticket;
+        }
+
+        void release() {
+            if (expiry != null) expiry.cancel();
+            ForgeChunkManager.releaseTicket(ticket);
+        }
+    }
+}
@@ -19,115 +19,398 @@
 package info.servertools.core.feature;
 
 import static info.servertools.core.feature.HomeHandler.EditHomeResult.DELETED;
+import static info.servertools.core.feature.HomeHandler.EditHomeResult.LIMIT_REACHED;
 import static info.servertools.core.feature.HomeHandler.EditHomeResult.NO_HOME;
 import static info.servertools.core.feature.HomeHandler.EditHomeResult.SET;
+import static info.servertools.core.feature.HomeHandler.EditHomeResult.SINGLE_HOME;
+import static info.servertools.core.feature.HomeHandler.EditHomeResult.UNREADABLE;
 
-import info.servertools.core.Constants;
+import info.servertools.core.CoreConfig;
+import info.servertools.core.ServerToolsCore;
 import info.servertools.core.util.FileIO;
+import info.servertools.core.util.JsonCodec;
+import info.servertools.core.util.KeyValueStore;
 import info.servertools.core.util.Location;
+import info.servertools.core.util.PlaceholderRegistry;
+import info.servertools.core.util.PlayerDataStore;
+import info.servertools.core.util.ServerUtils;
+import info.servertools.core.util.SpatialIndex;
+import info.servertools.core.util.StorageMode;
+import info.servertools.core.util.StoreCodec;
+import info.servertools.core.util.UUIDLocationMap;
 
+import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.util.ChatComponentText;
 import net.minecraft.util.EnumChatFormatting;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import javax.annotation.Nullable;
 
 public class HomeHandler {
     private static final Logger log = LogManager.getLogger();
 
-    private Map<UUID, Location> homeMap = new HashMap<>();
-    private final Path saveFile;
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
-    private final Type type = new ParameterizedType() {
-
-        @Override
-        public Type[] getActualTypeArguments() { return new Type[]{ UUID.class, Location.class }; }
+    /**
+     * The name of the home used when a player doesn't name one
+     */
+    public static final String DEFAULT_HOME = "home";
 
-        @Override
-        public Type getRawType() { return HashMap.class; }
+    private static final JsonCodec<Map<String, Location>> HOMES_CODEC =
+            JsonCodec.mapCodec(Function.identity(), JsonCodec.LOCATION_CODEC, TreeMap::new);
 
-        @Nullable
-        @Override
-        public Type getOwnerType() { return null; }
-    };
+    private final Path saveFile;
+    private final Path playerDir;
+    @Nullable private final KeyValueStore<UUID, Location> store;
+    @Nullable private final PlayerDataStore<Map<String, Location>> playerStore;
+    private final int maxHomes;
+    // All only used on the server thread
+    @Nullable private SpatialIndex<HomeId> locations; // Built by the first area query
+    @Nullable private List<Consumer<SpatialIndex<HomeId>>> indexChanges; // Made while the index is being built
+    private final List<Consumer<Boolean>> indexCallbacks = new ArrayList<>();
 
     public HomeHandler(final Path saveFile) throws IOException {
         this.saveFile = saveFile;
-        load();
+        this.playerDir = saveFile.resolveSibling("homes");
+        this.maxHomes = ServerToolsCore.instance().getConfig().getTeleport().getMaxHomes();
+        final CoreConfig.StorageCategory storage = ServerToolsCore.instance().getConfig().getStorage();
+        if (storage.getHomeStorage() == StorageMode.PER_PLAYER) {
+            this.store = null;
+            this.playerStore = new PlayerDataStore<>(playerDir, HOMES_CODEC, storage.getPlayerCacheSize(), storage.getSaveInterval());
+            loadPlayerStore(playerStore);
+        } else {
+            final UUIDLocationMap homes = new UUIDLocationMap();
+            this.store = KeyValueStore.open(storage.getHomeStorage(), saveFile, StoreCodec.UUID_LOCATIONS, () -> homes,
+                    storage.getSaveInterval(), storage.getJournalCompactThreshold());
+            this.playerStore = null;
+            if (store.isEmpty() && Files.exists(playerDir)) {
+                // Switched away from per-player storage, export the existing homes
+                readPlayerFiles(store);
+                KeyValueStore.retire(playerDir);
+                log.info("Exported {} homes from {}", store.size(), playerDir);
+            }
+            if (store.getMode() != StorageMode.MAPPED) {
+                log.info("Loaded {} homes using about {} KiB of heap, a HashMap would use about {} KiB",
+                        homes.size(), homes.getFootprint() / 1024, homes.getHashMapFootprint() / 1024);
+            }
+        }
     }
 
     public Optional<Location> getHome(final UUID uuid) {
+        return getHome(uuid, DEFAULT_HOME);
+    }
+
+    public Optional<Location> getHome(final UUID uuid, final String name) {
+        Objects.requireNonNull(uuid, "uuid");
+        Objects.requireNonNull(name, "name");
+        final String key = name.toLowerCase();
+        if (playerStore != null) {
+            return playerStore.get(uuid).map(homes -> homes.get(key));
+        }
+        return DEFAULT_HOME.equals(key) ? Optional.ofNullable(store.get(uuid)) : Optional.empty();
+    }
+
+    /**
+     * Get the names of a player's homes without touching the disk. The homes of a player who just logged in are read on an IO thread, so
+     * they may not be in memory for the first few ticks.
+     *
+     * @param uuid The player's UUID
+     *
+     * @return The names of the player's homes, or {@link Optional#empty()} if they aren't in memory yet
+     */
+    public Optional<Set<String>> getHomeNames(final UUID uuid) {
         Objects.requireNonNull(uuid, "uuid");
-        return Optional.ofNullable(homeMap.get(uuid));
+        if (playerStore != null) {
+            if (!playerStore.isResident(uuid)) return Optional.empty();
+            return Optional.of(playerStore.getIfResident(uuid)
+                    .map(homes -> Collections.unmodifiableSet(homes.keySet()))
+                    .orElse(Collections.emptySet()));
+        }
+        return Optional.of(store.containsKey(uuid) ? Collections.singleton(DEFAULT_HOME) : Collections.emptySet());
     }
 
     public EditHomeResult setHome(final UUID uuid, final Location location) {
+        return setHome(uuid, DEFAULT_HOME, location);
+    }
+
+    public EditHomeResult setHome(final UUID uuid, final String name, final Location location) {
         Objects.requireNonNull(uuid, "uuid");
+        Objects.requireNonNull(name, "name");
         Objects.requireNonNull(location, "location");
-        homeMap.put(uuid, location);
-        save();
+        final String key = name.toLowerCase();
+        if (playerStore != null) {
+            final Map<String, Location> current = playerStore.get(uuid).orElse(Collections.emptyMap());
+            if (playerStore.isUnreadable(uuid)) {
+                return UNREADABLE;
+            }
+            if (!current.containsKey(key) && current.size() >= maxHomes) {
+                return LIMIT_REACHED;
+            }
+            // Stored maps are never modified, the IO thread may be writing them
+            final Map<String, Location> homes = new TreeMap<>(current);
+            homes.put(key, location);
+            playerStore.put(uuid, homes);
+            indexPut(new HomeId(uuid, key), location);
+            return SET;
+        }
+        if (!DEFAULT_HOME.equals(key)) {
+            return SINGLE_HOME;
+        }
+        store.put(uuid, location);
+        indexPut(new HomeId(uuid, key), location);
         return SET;
     }
 
-    public EditHomeResult deleteHome(UUID uuid) {
+    public EditHomeResult deleteHome(final UUID uuid) {
+        return deleteHome(uuid, DEFAULT_HOME);
+    }
+
+    public EditHomeResult deleteHome(final UUID uuid, final String name) {
         Objects.requireNonNull(uuid, "uuid");
-        if (homeMap.remove(uuid) != null) {
-            save();
+        Objects.requireNonNull(name, "name");
+        final String key = name.toLowerCase();
+        if (playerStore != null) {
+            final Map<String, Location> current = playerStore.get(uuid).orElse(Collections.emptyMap());
+            if (playerStore.isUnreadable(uuid)) {
+                return UNREADABLE;
+            }
+            if (!current.containsKey(key)) {
+                return NO_HOME;
+            }
+            final Map<String, Location> homes = new TreeMap<>(current);
+            homes.remove(key);
+            playerStore.put(uuid, homes.isEmpty() ? null : homes);
+            indexRemove(new HomeId(uuid, key));
+            return DELETED;
+        }
+        if (DEFAULT_HOME.equals(key) && store.remove(uuid) != null) {
+            indexRemove(new HomeId(uuid, key));
             return DELETED;
         } else {
             return NO_HOME;
         }
     }
 
-    private void load() throws IOException {
-        synchronized (saveFile) {
-            if (!Files.exists(saveFile)) return;
-            try (BufferedReader reader = Files.newBufferedReader(saveFile, Constants.CHARSET)) {
-                @Nullable Map<UUID, Location> map = gson.fromJson(reader, type);
-                if (map == null) map = new HashMap<>();
-                this.homeMap = map;
-            } catch (IOException e) {
-                log.error("Failed to load homes", e);
-                throw e;
-            }
+    /**
+     * Get every player's homes inside an area, at any height. The bounds are inclusive and may be given in any order.
+     *
+     * @param dim The dimension
+     * @param x1  The X coordinate of one corner
+     * @param z1  The Z coordinate of one corner
+     * @param x2  The X coordinate of the opposite corner
+     * @param z2  The Z coordinate of the opposite corner
+     *
+     * @return The homes and their locations, or {@link Optional#empty()} if the homes haven't been {@linkplain #buildIndex(Consumer) indexed}
+     */
+    public Optional<Map<HomeId, Location>> getHomesWithin(final int dim, final double x1, final double z1, final double x2, final double z2) {
+        if (locations == null) return Optional.empty();
+        final Map<HomeId, Location> homes = new LinkedHashMap<>();
+        for (HomeId id : locations.within(dim, x1, Double.NEGATIVE_INFINITY, z1, x2, Double.POSITIVE_INFINITY, z2)) {
+            @Nullable final Location location = locations.get(id);
+            if (location != null) homes.put(id, location);
         }
+        return Optional.of(homes);
     }
 
-    private void save() {
-        final HashMap<UUID, Location> tempMap = new HashMap<>(homeMap);
-        FileIO.submitTask(() -> {
-            synchronized (saveFile) {
-                try {
-                    if (Files.exists(saveFile)) Files.delete(saveFile);
-                    try (final BufferedWriter writer = Files.newBufferedWriter(saveFile, Constants.CHARSET, StandardOpenOption.CREATE_NEW)) {
-                        gson.toJson(tempMap, type, writer);
+    /**
+     * Check if the homes have been indexed, so {@link #getHomesWithin(int, double, double, double, double)} can answer right away
+     *
+     * @return {@code true} if the index is ready
+     */
+    public boolean isIndexed() {
+        return locations != null;
+    }
+
+    /**
+     * Index every home so areas can be searched. Changes keep the index up to date once it is built.
+     * <p>
+     * With per-player storage the players who aren't in memory are read from the disk one at a time on an IO thread, and changes made in
+     * the meantime are applied once it is done.
+     * </p>
+     *
+     * @param callback Run on the server thread once the index is ready, with {@code false} if the homes could not be read
+     */
+    public void buildIndex(final Consumer<Boolean> callback) {
+        Objects.requireNonNull(callback, "callback");
+        if (locations != null) {
+            callback.accept(true);
+            return;
+        }
+        indexCallbacks.add(callback);
+        if (indexChanges != null) return; // Already building
+        final SpatialIndex<HomeId> index = new SpatialIndex<>();
+        if (playerStore == null) {
+            // Reads mapped records in place rather than copying the table
+            store.asMap().forEach((uuid, home) -> index.put(new HomeId(uuid, DEFAULT_HOME), home));
+            indexed(index);
+            return;
+        }
+        indexChanges = new ArrayList<>();
+        FileIO.submitSnapshot("home-index", playerDir, FileIO.Priority.NORMAL, () -> {
+            boolean read = true;
+            try {
+                playerStore.forEach((uuid, homes) -> {
+                    for (Map.Entry<String, Location> home : homes.entrySet()) {
+                        index.put(new HomeId(uuid, home.getKey()), home.getValue());
                     }
-                } catch (IOException e) {
-                    log.error("Failed to save homes", e);
-                }
+                });
+            } catch (IOException e) {
+                log.error("Failed to index homes", e);
+                read = false;
             }
+            final boolean success = read;
+            ServerUtils.callFromMainThread(() -> indexed(success ? index : null));
         });
     }
 
+    private void indexed(@Nullable final SpatialIndex<HomeId> index) {
+        if (index != null) {
+            if (indexChanges != null) {
+                for (Consumer<SpatialIndex<HomeId>> change : indexChanges) {
+                    change.accept(index);
+                }
+            }
+            locations = index;
+            log.info("Indexed {} homes", index.size());
+        }
+        indexChanges = null;
+        final List<Consumer<Boolean>> callbacks = new ArrayList<>(indexCallbacks);
+        indexCallbacks.clear();
+        for (Consumer<Boolean> callback : callbacks) {
+            callback.accept(index != null);
+        }
+    }
+
+    private void indexPut(final HomeId id, final Location location) {
+        if (locations != null) {
+            locations.put(id, location);
+        } else if (indexChanges != null) {
+            indexChanges.add(index -> index.put(id, location));
+        }
+    }
+
+    private void indexRemove(final HomeId id) {
+        if (locations != null) {
+            locations.remove(id);
+        } else if (indexChanges != null) {
+            indexChanges.add(index -> index.remove(id));
+        }
+    }
+
+    /**
+     * Add the {@code $HOME_SET$} placeholder, which is {@code yes} if the player has a home set and {@code no} if they don't. It never
+     * touches the disk, so it is {@code unknown} if the player's homes haven't been prefetched yet.
+     *
+     * @param placeholders The placeholders to add to
+     */
+    public void registerPlaceholders(final PlaceholderRegistry placeholders) {
+        placeholders.register("HOME_SET", 0, TimeUnit.SECONDS, sender -> sender instanceof EntityPlayer
+                ? getHomeNames(((EntityPlayer) sender).getPersistentID()).map(names -> names.isEmpty() ? "no" : "yes").orElse("unknown")
+                : null);
+    }
+
+    @SubscribeEvent
+    public void onPlayerLoggedIn(final PlayerEvent.PlayerLoggedInEvent event) {
+        // Only queues the read, so it isn't deferred like other join work and is ahead of anything the player can do
+        if (playerStore != null) playerStore.prefetch(event.player.getPersistentID());
+    }
+
+    @SubscribeEvent
+    public void onPlayerLoggedOut(final PlayerEvent.PlayerLoggedOutEvent event) {
+        if (playerStore != null) playerStore.release(event.player.getPersistentID());
+    }
+
+    private void loadPlayerStore(final PlayerDataStore<Map<String, Location>> store) throws IOException {
+        if (Files.exists(playerDir)) return;
+        try {
+            // Switched to per-player storage, import the existing homes
+            final Map<UUID, Location> map = new HashMap<>();
+            final List<Path> imported = KeyValueStore.readAll(saveFile, StoreCodec.UUID_LOCATIONS, map);
+            if (imported.isEmpty()) return;
+            final Map<UUID, Map<String, Location>> players = new HashMap<>();
+            for (Map.Entry<UUID, Location> entry : map.entrySet()) {
+                players.put(entry.getKey(), new TreeMap<>(Collections.singletonMap(DEFAULT_HOME, entry.getValue())));
+            }
+            store.writeAll(players);
+            for (Path file : imported) {
+                KeyValueStore.retire(file);
+            }
+            log.info("Imported {} homes into {}", map.size(), playerDir);
+        } catch (IOException e) {
+            log.error("Failed to load homes", e);
+            throw e;
+        }
+    }
+
+    private void readPlayerFiles(final KeyValueStore<UUID, Location> store) throws IOException {
+        int dropped = 0;
+        for (Map.Entry<UUID, Map<String, Location>> entry : PlayerDataStore.readAll(playerDir, HOMES_CODEC).entrySet()) {
+            @Nullable final Location home = entry.getValue().get(DEFAULT_HOME);
+            if (home != null) store.put(entry.getKey(), home);
+            dropped += home != null ? entry.getValue().size() - 1 : entry.getValue().size();
+        }
+        if (dropped > 0) {
+            log.warn("Only {} storage supports named homes, {} homes not named \"{}\" were not kept", StorageMode.PER_PLAYER, dropped, DEFAULT_HOME);
+        }
+    }
+
+    /**
+     * Identifies one of a player's homes
+     */
+    public static final class HomeId {
+
+        private final UUID uuid;
+        private final String name;
+
+        public HomeId(final UUID uuid, final String name) {
+            this.uuid = Objects.requireNonNull(uuid, "uuid");
+            this.name = Objects.requireNonNull(name, "name");
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean equals(@Nullable final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final HomeId homeId = (HomeId) o;
+            return uuid.equals(homeId.uuid) && name.equals(homeId.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * uuid.hashCode() + name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return uuid + "/" + name;
+        }
+    }
 
     public enum EditHomeResult {
         SET("Home set"),
         DELETED("Home deleted"),
-        NO_HOME("You didn't have a home set", true);
+        NO_HOME("You didn't have a home set", true),
+        LIMIT_REACHED("You can't set any more homes", true),
+        SINGLE_HOME("This server only allows a single home", true),
+        UNREADABLE("Your homes couldn't be read, ask an admin to check the server log", true);
 
         final String message;
         final boolean error;
@@ -0,0 +1,223 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.feature;
+
+import info.servertools.core.ServerToolsCore;
+import info.servertools.core.util.LatencyHistogram;
+
+import net.minecraft.entity.player.EntityPlayer;
+
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Spreads work for players that just logged in over the following ticks.
+ * <p>
+ * After a restart hundreds of players may log in within seconds. Work that doesn't have to happen on the tick a player logs in, such as
+ * sending the MOTD, is {@linkplain #schedule(EntityPlayer, String, Runnable) scheduled} here instead and run at
+ * the start of later ticks, until the tick's time budget is used up. Each player's tasks run in the order they were scheduled, and players
+ * take turns so one player with a lot of work doesn't hold up everybody else. At least one task runs every tick. Tasks of a player that
+ * logs out before they ran are dropped.
+ * </p>
+ * <p>
+ * Everything happens on the server thread.
+ * </p>
+ */
+public class JoinScheduler {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final long budgetNanos;
+    private final Map<UUID, PlayerTasks> players = new HashMap<>();
+    private final Deque<PlayerTasks> turns = new ArrayDeque<>();
+    private int queued;
+
+    private final LatencyHistogram waitLatency = new LatencyHistogram();
+    private final LatencyHistogram runLatency = new LatencyHistogram();
+    private long completed;
+    private long failed;
+    private long dropped;
+
+    public JoinScheduler() {
+        final int budget = ServerToolsCore.instance().getConfig().getGeneral().getJoinWorkTimePerTick();
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, budget));
+    }
+
+    /**
+     * Schedule work for a player that logged in. It runs on a later tick, after any work scheduled for the same player before it.
+     *
+     * @param player The player
+     * @param name   A short name for the work, used when it fails
+     * @param task   The work
+     */
+    public void schedule(final EntityPlayer player, final String name, final Runnable task) {
+        Objects.requireNonNull(player, "player");
+        Objects.requireNonNull(name, "name");
+        Objects.requireNonNull(task, "task");
+        PlayerTasks tasks = players.get(player.getPersistentID());
+        if (tasks == null) {
+            tasks = new PlayerTasks(player);
+            players.put(player.getPersistentID(), tasks);
+            turns.add(tasks);
+        }
+        tasks.tasks.add(new Task(name, task));
+        queued++;
+    }
+
+    /**
+     * Get the number of tasks waiting to run
+     *
+     * @return The number of tasks
+     */
+    public int getQueueLength() {
+        return queued;
+    }
+
+    /**
+     * Get the number of players that have tasks waiting to run
+     *
+     * @return The number of players
+     */
+    public int getPlayerCount() {
+        return players.size();
+    }
+
+    /**
+     * Get how long tasks waited between being scheduled and running
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getWaitLatency() {
+        return waitLatency;
+    }
+
+    /**
+     * Get how long tasks took to run
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getRunLatency() {
+        return runLatency;
+    }
+
+    /**
+     * Get the number of tasks that ran
+     *
+     * @return The number of tasks
+     */
+    public long getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * Get the number of tasks that threw an exception
+     *
+     * @return The number of tasks
+     */
+    public long getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * Get the number of tasks that were dropped because their player logged out first
+     *
+     * @return The number of tasks
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    @SubscribeEvent
+    public void onServerTick(final TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.START || turns.isEmpty()) return;
+        final long deadline = System.nanoTime() + budgetNanos;
+        do {
+            final PlayerTasks tasks = turns.poll();
+            final Task task = tasks.tasks.poll();
+            queued--;
+            if (tasks.tasks.isEmpty()) {
+                players.remove(tasks.uuid);
+            } else {
+                turns.add(tasks);
+            }
+            run(tasks.player, task);
+        } while (!turns.isEmpty() && System.nanoTime() < deadline);
+    }
+
+    private void run(final EntityPlayer player, final Task task) {
+        final long start = System.nanoTime();
+        waitLatency.record(start - task.scheduled);
+        try {
+            task.runnable.run();
+            completed++;
+        } catch (RuntimeException e) {
+            failed++;
+            log.error("Join task {} for {} failed", task.name, player.getName(), e);
+        }
+        runLatency.record(System.nanoTime() - start);
+    }
+
+    @SubscribeEvent
+    public void onPlayerLoggedOut(final PlayerEvent.PlayerLoggedOutEvent event) {
+        @Nullable final PlayerTasks tasks = players.remove(event.player.getPersistentID());
+        if (tasks != null) {
+            turns.remove(tasks);
+            queued -= tasks.tasks.size();
+            dropped += tasks.tasks.size();
+        }
+    }
+
+    private static final class PlayerTasks {
+
+        final EntityPlayer player;
+        final UUID uuid;
+        final Deque<Task> tasks = new ArrayDeque<>();
+
+        PlayerTasks(final EntityPlayer player) {
+            this.player = player;
+            this.uuid = player.getPersistentID();
+        }
+    }
+
+    private static final class Task {
+
+        final String name;
+        final Runnable runnable;
+        final long scheduled = System.nanoTime();
+
+        Task(final String name, final Runnable runnable) {
+            this.name = name;
+            this.runnable = runnable;
+        }
+    }
+}
@@ -19,10 +19,14 @@
 package info.servertools.core.feature;
 
 import info.servertools.core.Constants;
+import info.servertools.core.util.ChatTemplate;
+import info.servertools.core.util.FileWatcher;
+import info.servertools.core.util.PlaceholderRegistry;
+import info.servertools.core.util.ServerUtils;
+
+import net.minecraft.server.MinecraftServer;
 
 import net.minecraft.command.ICommandSender;
-import net.minecraft.util.ChatComponentText;
-import net.minecraft.util.EnumChatFormatting;
 
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.gameevent.PlayerEvent;
@@ -32,41 +36,54 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 public class Motd {
 
     private static final Logger log = LogManager.getLogger();
 
     private final Path file;
-    private List<String> lines = new ArrayList<>();
+    private final JoinScheduler joinScheduler;
+    private final PlaceholderRegistry placeholders = new PlaceholderRegistry();
+    private List<ChatTemplate> templates = new ArrayList<>();
 
-    public Motd(final Path file) {
+    public Motd(final Path file, final JoinScheduler joinScheduler) {
+        this.joinScheduler = joinScheduler;
+        placeholders.register("PLAYER", 0, TimeUnit.SECONDS, ICommandSender::getName);
+        placeholders.register("ONLINE", 1, TimeUnit.SECONDS, sender -> String.valueOf(ServerUtils.getAllPlayers().size()));
+        placeholders.register("MAX_PLAYERS", 60, TimeUnit.SECONDS,
+                sender -> String.valueOf(MinecraftServer.getServer().getConfigurationManager().getMaxPlayers()));
+        placeholders.register("TPS", 5, TimeUnit.SECONDS, sender -> String.format("%.1f", ServerUtils.getMeanTPS()));
+        placeholders.register("UPTIME", 10, TimeUnit.SECONDS, sender -> formatUptime(ManagementFactory.getRuntimeMXBean().getUptime()));
         try {
             this.file = file;
             if (!Files.exists(file.getParent())) {
                 Files.createDirectories(file.getParent());
             }
-            load();
-            save();
+            final List<String> lines = load();
+            save(lines);
+            this.templates = compile(lines);
         } catch (IOException e) {
             log.error("Failed to create MOTD", e);
             throw new RuntimeException(e);
         }
     }
 
-    private void load() throws IOException {
+    private List<String> load() throws IOException {
         if (!Files.exists(file)) {
-            genDefaultMotd();
+            return genDefaultMotd();
         } else {
-            lines = Files.readAllLines(file, Constants.CHARSET);
+            return Files.readAllLines(file, Constants.CHARSET);
         }
     }
 
-    private void save() throws IOException {
+    private void save(final List<String> lines) throws IOException {
         try (BufferedWriter writer = Files.newBufferedWriter(file, Constants.CHARSET)) {
             for (String line : lines) {
                 writer.write(line + "\r\n");
@@ -74,27 +91,57 @@ public class Motd {
         }
     }
 
-    private void genDefaultMotd() {
+    private static List<ChatTemplate> compile(final List<String> lines) {
+        final List<ChatTemplate> templates = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            templates.add(ChatTemplate.compile(line));
+        }
+        return templates;
+    }
+
+    /**
+     * Reload the MOTD whenever the file is changed on disk
+     *
+     * @throws IOException If the file can't be watched
+     */
+    public void watch() throws IOException {
+        FileWatcher.watch(file, file -> compile(Files.readAllLines(file, Constants.CHARSET)), templates -> this.templates = templates);
+    }
+
+    private static List<String> genDefaultMotd() {
         final List<String> list = new ArrayList<>();
         list.add("This is the default ServerTools MOTD.");
         list.add("To change it, edit the motd.txt in the ");
         list.add("ServerTools-CORE configuration directory");
-        this.lines = list;
+        return list;
+    }
+
+    /**
+     * Get the placeholders that can be used in the MOTD. Other features may register their own.
+     *
+     * @return The placeholders
+     */
+    public PlaceholderRegistry getPlaceholders() {
+        return placeholders;
+    }
+
+    private static String formatUptime(final long millis) {
+        final long minutes = TimeUnit.MILLISECONDS.toMinutes(millis);
+        if (minutes < 60) return minutes + "m";
+        if (minutes < 24 * 60) return minutes / 60 + "h " + minutes % 60 + "m";
+        return minutes / (24 * 60) + "d " + minutes / 60 % 24 + "h";
     }
 
     @SubscribeEvent
     public void onPlayerLogin(final PlayerEvent.PlayerLoggedInEvent event) {
-        serveMotd(event.player);
+        joinScheduler.schedule(event.player, "motd", () -> serveMotd(event.player));
     }
 
     public void serveMotd(final ICommandSender sender) {
-        for (String line : lines) {
-            line = line.replace("$PLAYER$", sender.getName());
-            for (EnumChatFormatting color : EnumChatFormatting.values()) {
-                if (!color.isColor()) continue;
-                line = line.replace('$' + color.getFriendlyName().toUpperCase() + '$', color.toString());
-            }
-            sender.addChatMessage(new ChatComponentText(line));
+        // Only the placeholders that appear in the MOTD are ever computed
+        final Function<String, String> resolver = placeholders.resolver(sender);
+        for (ChatTemplate template : templates) {
+            sender.addChatMessage(template.render(resolver));
         }
     }
 }
@@ -0,0 +1,296 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.feature;
+
+import info.servertools.core.CoreConfig;
+import info.servertools.core.ServerToolsCore;
+import info.servertools.core.util.Location;
+import info.servertools.core.util.SafeLanding;
+
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.gen.ChunkProviderServer;
+
+import net.minecraftforge.common.DimensionManager;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps a pool of safe places to land for random teleports in each dimension.
+ * <p>
+ * Finding a random safe place means loading, and often generating, the chunks around it, which is far too slow to do when a player asks
+ * for it. Instead the pools are refilled in the background, one candidate at a time, on ticks that finished with time to spare. A
+ * candidate is a random column within the radius around the world spawn. Its chunk and the three chunks that let it be populated are
+ * loaded, saved chunks on Forge's chunk IO thread, and then the surface is checked with {@link SafeLanding}. Candidates with nowhere safe
+ * to stand, such as the middle of an ocean, are thrown away.
+ * </p>
+ * <p>
+ * Chunks that were never saved are generated on the server thread, so each chunk is requested separately and counted against the tick's
+ * budget. Whatever is left when the budget runs out carries over to the next tick, which means a tick does at most one chunk's worth of
+ * generation past its budget.
+ * </p>
+ * <p>
+ * Dimensions are never loaded just to refill their pool.
+ * </p>
+ * <p>
+ * Everything happens on the server thread.
+ * </p>
+ */
+public class RandomTeleportPool {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long HEADROOM_NANOS = TimeUnit.MILLISECONDS.toNanos(10); // Left for the rest of the tick
+    private static final int CANDIDATE_TIMEOUT_TICKS = 200;
+
+    private final Map<Integer, Deque<Location>> pools = new LinkedHashMap<>();
+    private final int radius;
+    private final int poolSize;
+    private final long budgetNanos;
+    private final Random random = new Random();
+
+    private long tickStart;
+    private int tick;
+    @Nullable private Candidate candidate;
+
+    private long hits;
+    private long misses;
+    private long tried;
+    private long accepted;
+
+    public RandomTeleportPool() {
+        final CoreConfig.TeleportCategory config = ServerToolsCore.instance().getConfig().getTeleport();
+        for (int dimId : config.getRandomTeleportDimensions()) {
+            pools.put(dimId, new ArrayDeque<>());
+        }
+        this.radius = Math.max(0, config.getRandomTeleportRadius());
+        this.poolSize = Math.max(1, config.getRandomTeleportPoolSize());
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getRandomTeleportTimePerTick()));
+    }
+
+    /**
+     * Check if random teleports are available in a dimension
+     *
+     * @param dimId The dimension Id
+     *
+     * @return {@code true} if the dimension has a pool
+     */
+    public boolean hasPool(final int dimId) {
+        return pools.containsKey(dimId);
+    }
+
+    /**
+     * Take a safe place to land out of the pool of a dimension
+     *
+     * @param dimId The dimension Id
+     *
+     * @return The location, or {@link Optional#empty()} if the pool is empty or the dimension has no pool
+     */
+    public Optional<Location> take(final int dimId) {
+        @Nullable final Deque<Location> pool = pools.get(dimId);
+        @Nullable final Location location = pool == null ? null : pool.poll();
+        if (location == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(location);
+    }
+
+    /**
+     * Put a location that was {@linkplain #take(int) taken} but not used back at the front of its pool, so the chunk loads that found it
+     * aren't wasted
+     *
+     * @param location The location
+     */
+    public void putBack(final Location location) {
+        @Nullable final Deque<Location> pool = pools.get(location.getDim());
+        if (pool == null) return;
+        pool.addFirst(location);
+        hits--;
+    }
+
+    /**
+     * Get the number of locations ready in the pool of a dimension
+     *
+     * @param dimId The dimension Id
+     *
+     * @return The number of locations
+     */
+    public int getPooledCount(final int dimId) {
+        @Nullable final Deque<Location> pool = pools.get(dimId);
+        return pool == null ? 0 : pool.size();
+    }
+
+    /**
+     * Get the number of random teleports that were served from a pool
+     *
+     * @return The number of teleports
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of random teleports that found their pool empty
+     *
+     * @return The number of teleports
+     */
+    public long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the number of candidate locations that were checked
+     *
+     * @return The number of candidates
+     */
+    public long getTriedCount() {
+        return tried;
+    }
+
+    /**
+     * Get the number of candidate locations that were safe and added to a pool
+     *
+     * @return The number of candidates
+     */
+    public long getAcceptedCount() {
+        return accepted;
+    }
+
+    @SubscribeEvent
+    public void onServerTick(final TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.START) {
+            tickStart = System.nanoTime();
+            return;
+        }
+        tick++;
+        if (candidate != null && tick - candidate.startTick > CANDIDATE_TIMEOUT_TICKS) {
+            log.debug("Gave up on random teleport candidate {}, {} in dimension {}", candidate.x, candidate.z, candidate.dimId);
+            candidate = null;
+        }
+        final long now = System.nanoTime();
+        final long deadline = now + Math.min(budgetNanos, TICK_NANOS - HEADROOM_NANOS - (now - tickStart));
+        // A chunk may have to be generated, so the next one is only requested while this tick still has time to spare
+        while (System.nanoTime() < deadline) {
+            if (candidate == null) {
+                if (!startCandidate()) break;
+            } else if (!candidate.loadNext()) {
+                break; // Waiting for the chunk IO thread
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public void onWorldUnload(final WorldEvent.Unload event) {
+        if (candidate != null && candidate.world == event.world) candidate = null;
+    }
+
+    private boolean startCandidate() {
+        @Nullable Deque<Location> emptiest = null;
+        int dimId = 0;
+        for (Map.Entry<Integer, Deque<Location>> entry : pools.entrySet()) {
+            final Deque<Location> pool = entry.getValue();
+            if (pool.size() < poolSize && (emptiest == null || pool.size() < emptiest.size())
+                    && DimensionManager.getWorld(entry.getKey()) != null) {
+                emptiest = pool;
+                dimId = entry.getKey();
+            }
+        }
+        if (emptiest == null) return false;
+
+        final WorldServer world = DimensionManager.getWorld(dimId);
+        final BlockPos spawn = world.getSpawnPoint();
+        final int x = spawn.getX() + random.nextInt(2 * radius + 1) - radius;
+        final int z = spawn.getZ() + random.nextInt(2 * radius + 1) - radius;
+        tried++;
+        if (world.getWorldBorder().contains(new BlockPos(x, 0, z))) {
+            candidate = new Candidate(dimId, world, x, z);
+        }
+        return true;
+    }
+
+    private final class Candidate {
+
+        final int dimId;
+        final WorldServer world;
+        final int x;
+        final int z;
+        final int startTick = tick;
+        private int requested;
+        private int remaining = 4;
+
+        Candidate(final int dimId, final WorldServer world, final int x, final int z) {
+            this.dimId = dimId;
+            this.world = world;
+            this.x = x;
+            this.z = z;
+        }
+
+        /**
+         * Request the next chunk. Saved chunks are read on the chunk IO thread, but chunks that were never saved are generated before
+         * this returns.
+         *
+         * @return {@code false} if every chunk has already been requested
+         */
+        boolean loadNext() {
+            if (requested == 4) return false;
+            final ChunkProviderServer provider = world.theChunkProviderServer;
+            // A chunk is only populated once the chunks on its positive sides are loaded too
+            final int chunkX = (x >> 4) + (requested >> 1), chunkZ = (z >> 4) + (requested & 1);
+            requested++;
+            if (provider.chunkExists(chunkX, chunkZ)) {
+                chunkReady();
+            } else {
+                provider.loadChunk(chunkX, chunkZ, this::chunkReady);
+            }
+            return true;
+        }
+
+        private void chunkReady() {
+            if (candidate != this || --remaining > 0) return;
+            candidate = null;
+            final Chunk chunk = world.theChunkProviderServer.provideChunk(x >> 4, z >> 4);
+            final int y = world.provider.getHasNoSky() ? world.getActualHeight() / 2 : chunk.getHeightValue(x & 15, z & 15);
+            final Optional<BlockPos> landing = SafeLanding.find(world, new BlockPos(x, y, z));
+            @Nullable final Deque<Location> pool = pools.get(dimId);
+            if (landing.isPresent() && pool != null && pool.size() < poolSize) {
+                final BlockPos pos = landing.get();
+                pool.add(new Location(dimId, pos.getX() + 0.5, pos.getY(), pos.getZ() + 0.5));
+                accepted++;
+            }
+        }
+    }
+}
@@ -18,11 +18,12 @@
  */
 package info.servertools.core.feature;
 
-import static java.nio.file.StandardOpenOption.CREATE;
-
-import info.servertools.core.Constants;
+import info.servertools.core.CoreConfig;
 import info.servertools.core.ServerToolsCore;
-import info.servertools.core.util.FileIO;
+import info.servertools.core.util.CopyOnWriteMap;
+import info.servertools.core.util.KeyValueStore;
+import info.servertools.core.util.ServerUtils;
+import info.servertools.core.util.StoreCodec;
 
 import net.minecraft.command.server.CommandBroadcast;
 import net.minecraft.command.server.CommandEmote;
@@ -35,30 +36,43 @@ import net.minecraft.util.EnumChatFormatting;
 import net.minecraftforge.event.CommandEvent;
 import net.minecraftforge.event.ServerChatEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
 
 import com.google.common.collect.Sets;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
+/**
+ * Keeps silenced players out of chat.
+ * <p>
+ * A silence is either permanent or lasts until a time, which is saved with it so it survives restarts. Timed silences wait in a queue
+ * ordered by when they end, so each tick only looks at the silence that ends first. Lifting or changing a silence leaves its old entry in
+ * the queue, because removing it would mean searching the whole queue, and the entry is skipped when its time comes. Once most of the
+ * queue is skipped entries they are purged in one pass.
+ * </p>
+ */
 public class SilenceHandler {
 
     private static final Logger log = LogManager.getLogger();
 
+    /**
+     * Stored instead of an end time for silences that last until they are removed
+     */
+    private static final long PERMANENT = 0;
+
     private final Set<String> bannedCommands = Sets.newHashSet(
             CommandEmote.class.getName(),
             CommandMessage.class.getName(),
@@ -66,45 +80,72 @@ public class SilenceHandler {
             CommandBroadcast.class.getName()
     );
 
-    private final Path saveFile;
-
-    private Set<UUID> silencedUsers = new HashSet<>();
-
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
-    private final Type type = new ParameterizedType() {
-        @Override
-        public Type[] getActualTypeArguments() { return new Type[]{ UUID.class }; }
-
-        @Override
-        public Type getRawType() { return HashSet.class; }
-
-        @Nullable
-        @Override
-        public Type getOwnerType() { return null; }
-    };
+    private final KeyValueStore<UUID, Long> silencedUsers; // When each silence ends, in milliseconds since the epoch
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(); // Only used on the server thread after construction
 
     public SilenceHandler(final Path saveFile) throws IOException {
-        this.saveFile = saveFile;
+        final CoreConfig.StorageCategory storage = ServerToolsCore.instance().getConfig().getStorage();
+        this.silencedUsers = KeyValueStore.open(storage.getSilenceStorage(), saveFile, StoreCodec.UUID_TIMES, CopyOnWriteMap::new,
+                storage.getSaveInterval(), storage.getJournalCompactThreshold());
+        importSilenceSet(saveFile.resolveSibling("silenced.json"));
+        for (Map.Entry<UUID, Long> entry : silencedUsers.asMap().entrySet()) {
+            if (entry.getValue() != PERMANENT) expiries.add(new Expiry(entry.getKey(), entry.getValue()));
+        }
         bannedCommands.addAll(ServerToolsCore.instance().getConfig().getChat().getAdditionalSilenceCommands());
-        load();
+    }
+
+    private void importSilenceSet(final Path oldFile) throws IOException {
+        // Silences used to be stored as a set of UUIDs without end times
+        final Map<UUID, Boolean> old = new HashMap<>();
+        final List<Path> imported = KeyValueStore.readAll(oldFile, StoreCodec.UUID_SET, old);
+        if (imported.isEmpty()) return;
+        for (UUID uuid : old.keySet()) {
+            if (!silencedUsers.containsKey(uuid)) silencedUsers.put(uuid, PERMANENT);
+        }
+        silencedUsers.flush();
+        for (Path file : imported) {
+            KeyValueStore.retire(file);
+        }
+        log.info("Imported {} silences from {}", old.size(), oldFile);
     }
 
     /**
-     * Add a player to the silence list
+     * Add a player to the silence list until they are removed from it
      *
      * @param uuid The player's UUID
      *
      * @return {@code true} if the player was silenced, {@code false} if the player was already silenced
      */
     public boolean addSilence(final UUID uuid) {
-        if (silencedUsers.add(uuid)) {
-            save();
+        if (!silencedUsers.containsKey(uuid)) {
+            silencedUsers.put(uuid, PERMANENT);
             return true;
         } else {
             return false;
         }
     }
 
+    /**
+     * Add a player to the silence list for a while. A player that is already silenced is silenced for the new duration instead.
+     *
+     * @param uuid     The player's UUID
+     * @param duration How long the player is silenced for
+     * @param unit     The unit of {@code duration}
+     *
+     * @return {@code true} if the player was silenced, {@code false} if the player was already silenced
+     */
+    public boolean addSilence(final UUID uuid, final long duration, final TimeUnit unit) {
+        final long expiry = System.currentTimeMillis() + unit.toMillis(Math.max(0, duration));
+        final boolean added = !silencedUsers.containsKey(uuid);
+        silencedUsers.put(uuid, expiry);
+        expiries.add(new Expiry(uuid, expiry));
+        if (expiries.size() > 2 * silencedUsers.size() + 16) {
+            // Mostly skipped entries, drop them so the queue can't keep growing. Amortized over the entries added since the last purge
+            expiries.removeIf(entry -> !Objects.equals(silencedUsers.get(entry.uuid), entry.time));
+        }
+        return added;
+    }
+
     /**
      * Remove a player from the silence list
      *
@@ -113,52 +154,54 @@ public class SilenceHandler {
      * @return {@code true} if the player was un-silenced, {@code false} if the player was not silenced
      */
     public boolean removeSilence(final UUID uuid) {
-        if (silencedUsers.remove(uuid)) {
-            save();
-            return true;
-        } else {
-            return false;
-        }
+        return silencedUsers.remove(uuid) != null;
     }
 
-    private void save() {
-        FileIO.submitTask(() -> {
-            synchronized (saveFile) {
-                try {
-                    if (!Files.exists(saveFile.getParent())) {
-                        Files.createDirectories(saveFile.getParent());
-                    }
-                    Files.deleteIfExists(saveFile);
-                    try (BufferedWriter writer = Files.newBufferedWriter(saveFile, Constants.CHARSET, CREATE)) {
-                        gson.toJson(silencedUsers, type, writer);
-                    }
-                } catch (IOException e) {
-                    log.error("Failed to save silence file {}", saveFile, e);
-                }
-            }
-        });
+    /**
+     * Check if a player is silenced
+     *
+     * @param uuid The player's UUID
+     *
+     * @return {@code true} if the player is silenced
+     */
+    public boolean isSilenced(final UUID uuid) {
+        return silencedUsers.containsKey(uuid);
     }
 
-    private void load() throws IOException {
-        synchronized (saveFile) {
-            if (!Files.exists(saveFile)) return;
-            try (BufferedReader reader = Files.newBufferedReader(saveFile, Constants.CHARSET)) {
-                @Nullable Set<UUID> set = gson.fromJson(reader, type);
-                if (set == null) set = new HashSet<>();
-                this.silencedUsers = set;
-            } catch (IOException e) {
-                log.error("Failed to laod silence file {}", saveFile);
-                throw e;
-            }
+    /**
+     * Get how much longer a player is silenced for
+     *
+     * @param uuid The player's UUID
+     *
+     * @return The number of milliseconds, or {@code 0} if the player isn't silenced or is silenced until they are removed from the list
+     */
+    public long getRemainingMillis(final UUID uuid) {
+        @Nullable final Long expiry = silencedUsers.get(uuid);
+        return expiry == null || expiry == PERMANENT ? 0 : Math.max(0, expiry - System.currentTimeMillis());
+    }
+
+    @SubscribeEvent
+    public void onServerTick(final TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.START || expiries.isEmpty()) return;
+        final long now = System.currentTimeMillis();
+        while (!expiries.isEmpty() && expiries.peek().time <= now) {
+            final Expiry expiry = expiries.poll();
+            // Skip entries of silences that were lifted or changed since they were queued
+            @Nullable final Long current = silencedUsers.get(expiry.uuid);
+            if (current == null || current != expiry.time) continue;
+            silencedUsers.remove(expiry.uuid);
+            ServerUtils.getPlayerForUUID(expiry.uuid).ifPresent(player -> {
+                ChatComponentText text = new ChatComponentText("You are no longer silenced");
+                text.getChatStyle().setColor(EnumChatFormatting.GREEN);
+                player.addChatMessage(text);
+            });
         }
     }
 
     @SubscribeEvent
     public void onServerChat(final ServerChatEvent event) {
-        if (silencedUsers.contains(event.player.getPersistentID())) {
-            ChatComponentText text = new ChatComponentText("You are silenced from chat");
-            text.getChatStyle().setColor(EnumChatFormatting.RED);
-            event.player.addChatMessage(text);
+        if (silencedUsers.containsKey(event.player.getPersistentID())) {
+            event.player.addChatMessage(silencedMessage(event.player.getPersistentID()));
             event.setCanceled(true);
         }
     }
@@ -168,13 +211,54 @@ public class SilenceHandler {
         if (bannedCommands.contains(event.command.getClass().getName())) {
             if (event.sender instanceof EntityPlayerMP) {
                 final EntityPlayerMP player = (EntityPlayerMP) event.sender;
-                if (silencedUsers.contains(player.getPersistentID())) {
-                    ChatComponentText text = new ChatComponentText("You are silenced from chat");
-                    text.getChatStyle().setColor(EnumChatFormatting.RED);
-                    player.addChatMessage(text);
+                if (silencedUsers.containsKey(player.getPersistentID())) {
+                    player.addChatMessage(silencedMessage(player.getPersistentID()));
                     event.setCanceled(true);
                 }
             }
         }
     }
+
+    private ChatComponentText silencedMessage(final UUID uuid) {
+        final long remaining = getRemainingMillis(uuid);
+        final ChatComponentText text = new ChatComponentText(remaining == 0 ? "You are silenced from chat"
+                : "You are silenced from chat for another " + formatDuration(remaining));
+        text.getChatStyle().setColor(EnumChatFormatting.RED);
+        return text;
+    }
+
+    /**
+     * Format a duration for players to read, rounded up to the largest unit that fits
+     *
+     * @param millis The duration in milliseconds
+     *
+     * @return The formatted duration, such as {@code 5 minutes}
+     */
+    public static String formatDuration(final long millis) {
+        final long seconds = (millis + 999) / 1000;
+        if (seconds < 60) return plural(seconds, "second");
+        if (seconds < 60 * 60) return plural((seconds + 59) / 60, "minute");
+        if (seconds < 24 * 60 * 60) return plural((seconds + 60 * 60 - 1) / (60 * 60), "hour");
+        return plural((seconds + 24 * 60 * 60 - 1) / (24 * 60 * 60), "day");
+    }
+
+    private static String plural(final long count, final String unit) {
+        return count + " " + unit + (count == 1 ? "" : "s");
+    }
+
+    private static final class Expiry implements Comparable<Expiry> {
+
+        final UUID uuid;
+        final long time;
+
+        Expiry(final UUID uuid, final long time) {
+            this.uuid = uuid;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(final Expiry o) {
+            return Long.compare(time, o.time);
+        }
+    }
 }
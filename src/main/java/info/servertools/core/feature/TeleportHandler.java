@@ -23,75 +23,96 @@ import static info.servertools.core.feature.TeleportHandler.EditTeleportResult.C
 import static info.servertools.core.feature.TeleportHandler.EditTeleportResult.DELETED;
 import static info.servertools.core.feature.TeleportHandler.EditTeleportResult.NO_EXIST;
 
-import info.servertools.core.Constants;
-import info.servertools.core.util.FileIO;
+import info.servertools.core.CoreConfig;
+import info.servertools.core.ServerToolsCore;
+import info.servertools.core.util.CopyOnWriteMap;
+import info.servertools.core.util.KeyValueStore;
 import info.servertools.core.util.Location;
+import info.servertools.core.util.PrefixIndex;
+import info.servertools.core.util.SpatialIndex;
+import info.servertools.core.util.StoreCodec;
 
 import net.minecraft.util.ChatComponentText;
 import net.minecraft.util.EnumChatFormatting;
 
-import com.google.common.collect.ImmutableSet;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.util.*;
 
-import javax.annotation.Nullable;
-
 public class TeleportHandler {
 
-    private static final Logger log = LogManager.getLogger();
-
-    private Map<String, Location> locationMap = new HashMap<>();
-    private final Path saveFile;
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
-    private final Type type = new ParameterizedType() {
-
-        @Override
-        public Type[] getActualTypeArguments() { return new Type[]{ String.class, Location.class }; }
-
-        @Override
-        public Type getRawType() { return HashMap.class; }
+    /**
+     * The maximum number of names offered when completing a teleport name
+     */
+    public static final int COMPLETION_LIMIT = 50;
 
-        @Nullable
-        @Override
-        public Type getOwnerType() { return null; }
-    };
+    private final KeyValueStore<String, Location> store;
+    private final PrefixIndex names = new PrefixIndex();
+    private final SpatialIndex<String> locations = new SpatialIndex<>();
 
     public TeleportHandler(final Path saveFile) throws IOException {
-        this.saveFile = saveFile;
-        load();
+        final CoreConfig.StorageCategory storage = ServerToolsCore.instance().getConfig().getStorage();
+        this.store = KeyValueStore.open(storage.getTeleportStorage(), saveFile, StoreCodec.STRING_LOCATIONS, CopyOnWriteMap::new,
+                storage.getSaveInterval(), storage.getJournalCompactThreshold());
+        for (Map.Entry<String, Location> entry : store.asMap().entrySet()) {
+            names.add(entry.getKey());
+            locations.put(entry.getKey(), entry.getValue());
+        }
     }
 
     public Optional<Location> getTeleport(String name) {
         Objects.requireNonNull(name, "name");
         name = name.toLowerCase();
-        return Optional.ofNullable(locationMap.get(name));
+        return Optional.ofNullable(store.get(name));
     }
 
     public Set<String> getTeleportNames() {
-        return ImmutableSet.copyOf(locationMap.keySet());
+        return store.snapshot().keySet();
+    }
+
+    /**
+     * Get the names of the teleports that start with a prefix, the most used first
+     *
+     * @param prefix The prefix
+     *
+     * @return At most {@link #COMPLETION_LIMIT} names
+     */
+    public List<String> completeTeleportName(final String prefix) {
+        return names.complete(prefix, COMPLETION_LIMIT);
+    }
+
+    /**
+     * Record that a player used a teleport, which ranks it higher when completing names
+     *
+     * @param name The name of the teleport
+     */
+    public void recordUse(final String name) {
+        names.recordUse(name);
+    }
+
+    /**
+     * Get the names of the teleports closest to a location, in the same dimension
+     *
+     * @param location The location
+     * @param count    The maximum number of teleports
+     *
+     * @return The names, closest first
+     */
+    public List<String> getNearestTeleports(final Location location, final int count) {
+        Objects.requireNonNull(location, "location");
+        return locations.nearest(location.getDim(), location.getX(), location.getY(), location.getZ(), count);
     }
 
     public EditTeleportResult setTeleport(String name, final Location location) {
         Objects.requireNonNull(name, "name");
         Objects.requireNonNull(location, "location");
         name = name.toLowerCase();
-        if (locationMap.containsKey(name)) {
+        if (store.containsKey(name)) {
             return ALREADY_EXISTS;
         } else {
-            locationMap.put(name, location);
-            save();
+            store.put(name, location);
+            names.add(name);
+            locations.put(name, location);
             return CREATED;
         }
     }
@@ -99,44 +120,15 @@ public class TeleportHandler {
     public EditTeleportResult deleteTeleport(String name) {
         Objects.requireNonNull(name, "name");
         name = name.toLowerCase();
-        if (locationMap.remove(name) != null) {
-            save();
+        if (store.remove(name) != null) {
+            names.remove(name);
+            locations.remove(name);
             return DELETED;
         } else {
             return NO_EXIST;
         }
     }
 
-    private void load() throws IOException {
-        synchronized (saveFile) {
-            if (!Files.exists(saveFile)) return;
-            try (BufferedReader reader = Files.newBufferedReader(saveFile, Constants.CHARSET)) {
-                @Nullable Map<String, Location> map = gson.fromJson(reader, type);
-                if (map == null) map = new HashMap<>();
-                this.locationMap = map;
-            } catch (IOException e) {
-                log.error("Failed to load teleports", e);
-                throw e;
-            }
-        }
-    }
-
-    private void save() {
-        final HashMap<String, Location> tempMap = new HashMap<>(locationMap);
-        FileIO.submitTask(() -> {
-            synchronized (saveFile) {
-                try {
-                    if (Files.exists(saveFile)) Files.delete(saveFile);
-                    try (final BufferedWriter writer = Files.newBufferedWriter(saveFile, Constants.CHARSET, StandardOpenOption.CREATE_NEW)) {
-                        gson.toJson(tempMap, type, writer);
-                    }
-                } catch (IOException e) {
-                    log.error("Failed to save teleports", e);
-                }
-            }
-        });
-    }
-
 
     public enum EditTeleportResult {
         CREATED("Teleport created"),
@@ -0,0 +1,448 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.feature;
+
+import info.servertools.core.CoreConfig;
+import info.servertools.core.ServerToolsCore;
+import info.servertools.core.util.LatencyHistogram;
+import info.servertools.core.util.Location;
+import info.servertools.core.util.PlayerUtils;
+import info.servertools.core.util.ServerUtils;
+import info.servertools.core.util.TimingWheel;
+
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.EnumChatFormatting;
+import net.minecraft.util.MathHelper;
+import net.minecraft.world.ChunkCoordIntPair;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.gen.ChunkProviderServer;
+
+import net.minecraftforge.common.ForgeChunkManager;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Moves players only once the chunks around their destination are loaded.
+ * <p>
+ * A teleport first asks the chunk provider for every chunk within the preload radius of the destination. Chunks that are saved on disk are
+ * read by Forge's chunk IO thread and handed back on a later tick, chunks that have never been generated are generated on the spot. Each
+ * chunk is forced with a ticket as it arrives so it can't be unloaded again before the player gets there, and the ticket is released a
+ * few seconds after the player was moved. If the chunks take too long the player is moved anyway.
+ * </p>
+ * <p>
+ * Loading destinations and moving players are both limited per tick, so a crowd of players teleporting at once is spread over several
+ * ticks instead of stalling one. Work that doesn't fit waits in line, oldest first, and the players in line are told their place.
+ * </p>
+ * <p>
+ * Everything happens on the server thread.
+ * </p>
+ */
+public class TeleportPipeline implements ForgeChunkManager.LoadingCallback {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int MAX_RADIUS = 2; // Forge allows 25 chunks per ticket by default
+    private static final int MAX_TICKETS = 64;
+    private static final int PRELOAD_TIMEOUT_TICKS = 200;
+    private static final int HOLD_TICKS = 100;
+    private static final int FEEDBACK_INTERVAL_TICKS = 100;
+
+    private final DimensionWarmup dimensions;
+    private final TimingWheel wheel = new TimingWheel(256);
+    private final int radius;
+    private final boolean safeLanding;
+    private final int maxMovesPerTick;
+    private final long budgetNanos;
+    private final Map<UUID, Request> pending = new HashMap<>();
+    private int tickets;
+
+    private final Deque<Request> waiting = new ArrayDeque<>(); // Not yet loading their destination
+    private final Deque<Request> ready = new ArrayDeque<>(); // Destination loaded, not yet moved
+    private int movesThisTick;
+    private long nanosThisTick;
+    private boolean timing;
+
+    private final LatencyHistogram preloadLatency = new LatencyHistogram();
+    private final LatencyHistogram moveLatency = new LatencyHistogram();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private long teleports;
+    private long chunksRequested;
+    private long chunksAlreadyLoaded;
+    private long timeouts;
+    private long abandoned;
+    private long unsafe;
+    private long queued;
+
+    public TeleportPipeline(final DimensionWarmup dimensions) {
+        this.dimensions = Objects.requireNonNull(dimensions, "dimensions");
+        final CoreConfig.TeleportCategory config = ServerToolsCore.instance().getConfig().getTeleport();
+        this.radius = MathHelper.clamp_int(config.getPreloadRadius(), 0, MAX_RADIUS);
+        this.safeLanding = config.isSafeLandingEnabled();
+        this.maxMovesPerTick = Math.max(1, config.getMaxTeleportsPerTick());
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.getTeleportTimePerTick()));
+    }
+
+    /**
+     * Teleport a player once the chunks around the destination are loaded. A teleport the player is still waiting for is abandoned.
+     *
+     * @param player      The player
+     * @param destination Where to teleport the player
+     * @param onArrival   Run after the player was teleported. Not run if the player logs out or dies first
+     *
+     * @throws IllegalArgumentException If the destination dimension doesn't exist
+     */
+    public void teleport(final EntityPlayerMP player, final Location destination, final Runnable onArrival) {
+        Objects.requireNonNull(player, "player");
+        Objects.requireNonNull(destination, "destination");
+        Objects.requireNonNull(onArrival, "onArrival");
+        // Checked first so the earlier request is kept if the destination is invalid. The dimension is only loaded once the request
+        // starts, so the load counts against the tick's budget
+        dimensions.checkExists(destination.getDim());
+        final Request request = new Request(player, destination, onArrival);
+        @Nullable final Request previous = pending.put(player.getPersistentID(), request);
+        if (previous != null) previous.abandon();
+        if (waiting.isEmpty() && hasTime()) {
+            timed(request::start);
+        } else {
+            enqueue(waiting, request);
+        }
+    }
+
+    private boolean hasTime() {
+        return nanosThisTick < budgetNanos;
+    }
+
+    private boolean hasMove() {
+        return movesThisTick < maxMovesPerTick && hasTime();
+    }
+
+    /**
+     * Run some work and charge its time to this tick. Work started by other work is charged with it.
+     */
+    private void timed(final Runnable work) {
+        if (timing) {
+            work.run();
+            return;
+        }
+        timing = true;
+        final long start = System.nanoTime();
+        try {
+            work.run();
+        } finally {
+            nanosThisTick += System.nanoTime() - start;
+            timing = false;
+        }
+    }
+
+    private void enqueue(final Deque<Request> queue, final Request request) {
+        if (!request.wasQueued) {
+            request.wasQueued = true;
+            queued++;
+        }
+        request.queuedTime = System.nanoTime();
+        queue.add(request);
+        request.tellPlace(placeOf(request));
+    }
+
+    private int placeOf(final Request request) {
+        int place = 1;
+        for (Request other : ready) {
+            if (other == request) return place;
+            if (!other.done) place++;
+        }
+        for (Request other : waiting) {
+            if (other == request) return place;
+            if (!other.done) place++;
+        }
+        return place;
+    }
+
+    private void runQueues() {
+        // Players whose destination is loaded have waited the longest, move them first
+        while (!ready.isEmpty() && hasMove()) {
+            final Request request = ready.poll();
+            if (!request.done) timed(request::move);
+        }
+        while (!waiting.isEmpty() && hasTime()) {
+            final Request request = waiting.poll();
+            if (!request.done) timed(request::start);
+        }
+        if (wheel.getTick() % FEEDBACK_INTERVAL_TICKS == 0 && (!ready.isEmpty() || !waiting.isEmpty())) {
+            int place = 1;
+            for (Request request : ready) {
+                if (!request.done) request.tellPlace(place++);
+            }
+            for (Request request : waiting) {
+                if (!request.done) request.tellPlace(place++);
+            }
+        }
+    }
+
+    /**
+     * Get how long teleports waited for their chunks
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getPreloadLatency() {
+        return preloadLatency;
+    }
+
+    /**
+     * Get how long moving players took once their chunks were loaded
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getMoveLatency() {
+        return moveLatency;
+    }
+
+    /**
+     * Get how long teleports that didn't fit in a tick waited in line
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    public long getTeleportCount() {
+        return teleports;
+    }
+
+    public long getChunksRequested() {
+        return chunksRequested;
+    }
+
+    public long getChunksAlreadyLoaded() {
+        return chunksAlreadyLoaded;
+    }
+
+    public long getTimeoutCount() {
+        return timeouts;
+    }
+
+    public long getAbandonedCount() {
+        return abandoned;
+    }
+
+    public long getUnsafeCount() {
+        return unsafe;
+    }
+
+    public long getQueuedCount() {
+        return queued;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public void ticketsLoaded(final List<ForgeChunkManager.Ticket> tickets, final World world) {
+        // Left over from the last run, nobody is waiting for these chunks any more
+        for (ForgeChunkManager.Ticket ticket : tickets) {
+            ForgeChunkManager.releaseTicket(ticket);
+        }
+    }
+
+    @SubscribeEvent
+    public void onServerTick(final TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.START) {
+            movesThisTick = 0;
+            nanosThisTick = 0;
+            runQueues();
+        } else {
+            wheel.tick();
+        }
+    }
+
+    @SubscribeEvent
+    public void onPlayerLoggedOut(final PlayerEvent.PlayerLoggedOutEvent event) {
+        @Nullable final Request request = pending.remove(event.player.getPersistentID());
+        if (request != null) request.abandon();
+    }
+
+    private final class Request {
+
+        private final EntityPlayerMP player;
+        private final Location destination;
+        private final Runnable onArrival;
+        private long startTime;
+        private long preloadTime;
+
+        @Nullable private ForgeChunkManager.Ticket ticket;
+        @Nullable private TimingWheel.Timer timeout;
+        private long queuedTime;
+        private boolean wasQueued;
+        private int lastPlace;
+        private int remaining;
+        private int alreadyLoaded;
+        private boolean done;
+
+        Request(final EntityPlayerMP player, final Location destination, final Runnable onArrival) {
+            this.player = player;
+            this.destination = destination;
+            this.onArrival = onArrival;
+        }
+
+        void start() {
+            recordQueueTime();
+            startTime = System.nanoTime();
+            final WorldServer world;
+            try {
+                world = dimensions.acquire(destination.getDim());
+            } catch (IllegalArgumentException e) {
+                // The dimension went away while the request was waiting
+                finish();
+                abandoned++;
+                pending.remove(player.getPersistentID(), this);
+                final ChatComponentText message = new ChatComponentText("Can't teleport there: " + e.getMessage());
+                message.getChatStyle().setColor(EnumChatFormatting.RED);
+                player.addChatMessage(message);
+                return;
+            }
+            if (tickets < MAX_TICKETS) {
+                ticket = ForgeChunkManager.requestTicket(ServerToolsCore.instance(), world, ForgeChunkManager.Type.NORMAL);
+                if (ticket != null) tickets++;
+            }
+            final int centerX = MathHelper.floor_double(destination.getX()) >> 4;
+            final int centerZ = MathHelper.floor_double(destination.getZ()) >> 4;
+            final ChunkProviderServer provider = world.theChunkProviderServer;
+            final int side = 2 * radius + 1;
+            remaining = side * side;
+            chunksRequested += remaining;
+            timeout = wheel.schedule(PRELOAD_TIMEOUT_TICKS, this::timedOut);
+            for (int x = centerX - radius; x <= centerX + radius; x++) {
+                for (int z = centerZ - radius; z <= centerZ + radius; z++) {
+                    final int chunkX = x, chunkZ = z;
+                    if (provider.chunkExists(chunkX, chunkZ)) {
+                        alreadyLoaded++;
+                        chunksAlreadyLoaded++;
+                        chunkReady(chunkX, chunkZ);
+                    } else {
+                        provider.loadChunk(chunkX, chunkZ, () -> chunkReady(chunkX, chunkZ));
+                    }
+                }
+            }
+        }
+
+        private void chunkReady(final int chunkX, final int chunkZ) {
+            if (done) return;
+            if (ticket != null) ForgeChunkManager.forceChunk(ticket, new ChunkCoordIntPair(chunkX, chunkZ));
+            if (--remaining == 0) loaded();
+        }
+
+        private void timedOut() {
+            if (done) return;
+            timeouts++;
+            log.warn("Teleporting {} before {} chunks around {} were loaded", player.getName(), remaining, destination);
+            remaining = 0;
+            loaded();
+        }
+
+        private void loaded() {
+            if (timeout != null) timeout.cancel();
+            preloadTime = System.nanoTime() - startTime;
+            preloadLatency.record(preloadTime);
+            if (ready.isEmpty() && hasMove()) {
+                timed(this::move);
+            } else {
+                enqueue(ready, this);
+            }
+        }
+
+        private void tellPlace(final int place) {
+            if (place == lastPlace) return;
+            lastPlace = place;
+            player.addChatMessage(new ChatComponentText("Waiting to teleport, you are number " + place + " in line"));
+        }
+
+        private void recordQueueTime() {
+            if (queuedTime != 0) {
+                queueLatency.record(System.nanoTime() - queuedTime);
+                queuedTime = 0;
+            }
+        }
+
+        private void move() {
+            finish();
+            recordQueueTime();
+            pending.remove(player.getPersistentID(), this);
+            if (!player.isEntityAlive() || ServerUtils.getPlayerForUUID(player.getPersistentID()).orElse(null) != player) {
+                abandoned++;
+                releaseTicket();
+                return;
+            }
+            movesThisTick++;
+            final long moveStart = System.nanoTime();
+            final boolean moved = PlayerUtils.teleportPlayer(player, destination, safeLanding);
+            final long moveTime = System.nanoTime() - moveStart;
+            moveLatency.record(moveTime);
+            if (!moved) {
+                unsafe++;
+                releaseTicket();
+                final ChatComponentText message = new ChatComponentText("There's nowhere safe to land there");
+                message.getChatStyle().setColor(EnumChatFormatting.RED);
+                player.addChatMessage(message);
+                return;
+            }
+            teleports++;
+            log.debug("Teleported {} to {} after {} ms loading {} chunks ({} already loaded), moving took {} ms", player.getName(), destination,
+                    preloadTime / 1000000, (2 * radius + 1) * (2 * radius + 1), alreadyLoaded, moveTime / 1000000);
+            wheel.schedule(HOLD_TICKS, this::releaseTicket);
+            onArrival.run();
+        }
+
+        void abandon() {
+            if (done) return;
+            finish();
+            abandoned++;
+            releaseTicket();
+        }
+
+        private void finish() {
+            done = true;
+            if (timeout != null) timeout.cancel();
+        }
+
+        private void releaseTicket() {
+            if (ticket == null) return;
+            ForgeChunkManager.releaseTicket(ticket);
+            ticket = null;
+            tickets--;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.feature;
+
+import info.servertools.core.CoreConfig;
+import info.servertools.core.ServerToolsCore;
+import info.servertools.core.util.Location;
+import info.servertools.core.util.TimingWheel;
+
+import net.minecraft.command.CommandException;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.EnumChatFormatting;
+
+import net.minecraftforge.event.entity.living.LivingHurtEvent;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * Delays teleports by a warmup that is cancelled if the player moves or takes damage, and enforces a cooldown between uses of each teleport
+ * command.
+ * <p>
+ * Both are timers on a {@link TimingWheel} that is ticked once per server tick, so pending warmups and cooldowns cost nothing until they
+ * expire. Cooldowns are kept by UUID and keep running while a player is logged out. Once the warmup is over the player is handed to the
+ * {@link TeleportPipeline}, and the cooldown starts when they arrive.
+ * </p>
+ */
+public class TeleportTimerHandler {
+
+    private static final int TICKS_PER_SECOND = 20;
+    private static final double MAX_MOVEMENT_SQ = 0.5 * 0.5;
+
+    private final TeleportPipeline pipeline;
+    private final TimingWheel wheel = new TimingWheel(1024);
+    private final int warmupTicks;
+    private final Map<String, Integer> cooldownTicks = new HashMap<>();
+
+    private final Map<UUID, Warmup> warmups = new HashMap<>();
+    private final Map<UUID, Map<String, TimingWheel.Timer>> cooldowns = new HashMap<>();
+
+    public TeleportTimerHandler(final TeleportPipeline pipeline) {
+        this.pipeline = Objects.requireNonNull(pipeline, "pipeline");
+        final CoreConfig.TeleportCategory config = ServerToolsCore.instance().getConfig().getTeleport();
+        this.warmupTicks = Math.max(0, config.getWarmup()) * TICKS_PER_SECOND;
+        for (Map.Entry<String, Integer> entry : config.getCooldowns().entrySet()) {
+            if (entry.getValue() != null && entry.getValue() > 0) {
+                cooldownTicks.put(entry.getKey(), entry.getValue() * TICKS_PER_SECOND);
+            }
+        }
+    }
+
+    /**
+     * Teleport a player once the warmup has passed, and start the cooldown of the command that teleported them
+     *
+     * @param player      The player
+     * @param command     The name of the command
+     * @param destination Where to teleport the player
+     * @param onArrival   Run after the player was teleported
+     *
+     * @throws CommandException If the command is still cooling down for the player
+     */
+    public void teleport(final EntityPlayerMP player, final String command, final Location destination, final Runnable onArrival)
+            throws CommandException {
+        Objects.requireNonNull(player, "player");
+        Objects.requireNonNull(command, "command");
+        Objects.requireNonNull(destination, "destination");
+        Objects.requireNonNull(onArrival, "onArrival");
+        final UUID uuid = player.getPersistentID();
+        final long remaining = getCooldownTicks(uuid, command);
+        if (remaining > 0) {
+            throw new CommandException("You must wait " + toSeconds(remaining) + " seconds before using /" + command + " again");
+        }
+        cancelWarmup(uuid, null);
+        if (warmupTicks == 0) {
+            arrive(player, command, destination, onArrival);
+            return;
+        }
+        final Warmup warmup = new Warmup(player, new Location(player));
+        warmup.timer = wheel.schedule(warmupTicks, () -> {
+            warmups.remove(uuid);
+            arrive(player, command, destination, onArrival);
+        });
+        warmups.put(uuid, warmup);
+        player.addChatMessage(new ChatComponentText("Teleporting in " + toSeconds(warmupTicks) + " seconds, don't move"));
+    }
+
+    /**
+     * Get the number of ticks before a player may use a command again
+     *
+     * @param uuid    The player's UUID
+     * @param command The name of the command
+     *
+     * @return The number of ticks, or {@code 0} if the command isn't cooling down
+     */
+    public long getCooldownTicks(final UUID uuid, final String command) {
+        @Nullable final Map<String, TimingWheel.Timer> timers = cooldowns.get(uuid);
+        @Nullable final TimingWheel.Timer timer = timers == null ? null : timers.get(command);
+        return timer == null ? 0 : timer.getRemainingTicks();
+    }
+
+    private void arrive(final EntityPlayerMP player, final String command, final Location destination, final Runnable onArrival) {
+        try {
+            pipeline.teleport(player, destination, () -> {
+                onArrival.run();
+                startCooldown(player, command);
+            });
+        } catch (IllegalArgumentException e) {
+            final ChatComponentText message = new ChatComponentText("Can't teleport there: " + e.getMessage());
+            message.getChatStyle().setColor(EnumChatFormatting.RED);
+            player.addChatMessage(message);
+        }
+    }
+
+    private void startCooldown(final EntityPlayerMP player, final String command) {
+        @Nullable final Integer ticks = cooldownTicks.get(command);
+        if (ticks == null) return;
+        final UUID uuid = player.getPersistentID();
+        final Map<String, TimingWheel.Timer> timers = cooldowns.computeIfAbsent(uuid, k -> new HashMap<>());
+        timers.put(command, wheel.schedule(ticks, () -> {
+            timers.remove(command);
+            if (timers.isEmpty()) cooldowns.remove(uuid);
+        }));
+    }
+
+    private void cancelWarmup(final UUID uuid, @Nullable final String reason) {
+        @Nullable final Warmup warmup = warmups.remove(uuid);
+        if (warmup == null || !warmup.timer.cancel() || reason == null) return;
+        final ChatComponentText text = new ChatComponentText("Teleport cancelled because you " + reason);
+        text.getChatStyle().setColor(EnumChatFormatting.RED);
+        warmup.player.addChatMessage(text);
+    }
+
+    private static long toSeconds(final long ticks) {
+        return (ticks + TICKS_PER_SECOND - 1) / TICKS_PER_SECOND;
+    }
+
+    @SubscribeEvent
+    public void onServerTick(final TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END) {
+            wheel.tick();
+        }
+    }
+
+    @SubscribeEvent
+    public void onPlayerTick(final TickEvent.PlayerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END || warmups.isEmpty() || !(event.player instanceof EntityPlayerMP)) return;
+        @Nullable final Warmup warmup = warmups.get(event.player.getPersistentID());
+        if (warmup == null) return;
+        final Location start = warmup.start;
+        final double dx = event.player.posX - start.getX(), dy = event.player.posY - start.getY(), dz = event.player.posZ - start.getZ();
+        if (event.player.dimension != start.getDim() || dx * dx + dy * dy + dz * dz > MAX_MOVEMENT_SQ) {
+            cancelWarmup(event.player.getPersistentID(), "moved");
+        }
+    }
+
+    @SubscribeEvent
+    public void onLivingHurt(final LivingHurtEvent event) {
+        if (!warmups.isEmpty() && event.entityLiving instanceof EntityPlayerMP) {
+            cancelWarmup(event.entityLiving.getPersistentID(), "took damage");
+        }
+    }
+
+    @SubscribeEvent
+    public void onPlayerLoggedOut(final PlayerEvent.PlayerLoggedOutEvent event) {
+        cancelWarmup(event.player.getPersistentID(), null);
+    }
+
+    private static final class Warmup {
+
+        final EntityPlayerMP player;
+        final Location start;
+        @SuppressWarnings("NullableProblems") TimingWheel.Timer timer; // Set right after construction
+
+        Warmup(final EntityPlayerMP player, final Location start) {
+            this.player = player;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Reads and writes values of a type in a compact binary form
+ *
+ * @param <T> The type of value
+ */
+public interface BinaryCodec<T> {
+
+    /**
+     * Encodes {@link UUID}s as their two 64 bit halves
+     */
+    BinaryCodec<UUID> UUID_CODEC = new BinaryCodec<UUID>() {
+        @Override
+        public void write(final DataOutput out, final UUID value) throws IOException {
+            out.writeLong(value.getMostSignificantBits());
+            out.writeLong(value.getLeastSignificantBits());
+        }
+
+        @Override
+        public UUID read(final DataInput in) throws IOException {
+            return new UUID(in.readLong(), in.readLong());
+        }
+    };
+
+    /**
+     * Encodes {@link String}s in modified UTF-8
+     */
+    BinaryCodec<String> STRING_CODEC = new BinaryCodec<String>() {
+        @Override
+        public void write(final DataOutput out, final String value) throws IOException {
+            out.writeUTF(value);
+        }
+
+        @Override
+        public String read(final DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+
+    /**
+     * Encodes {@link Location}s as the dimension followed by the three coordinates
+     */
+    BinaryCodec<Location> LOCATION_CODEC = new BinaryCodec<Location>() {
+        @Override
+        public void write(final DataOutput out, final Location value) throws IOException {
+            out.writeInt(value.getDim());
+            out.writeDouble(value.getX());
+            out.writeDouble(value.getY());
+            out.writeDouble(value.getZ());
+        }
+
+        @Override
+        public Location read(final DataInput in) throws IOException {
+            return new Location(in.readInt(), in.readDouble(), in.readDouble(), in.readDouble());
+        }
+    };
+
+    /**
+     * Encodes {@link Long}s as 64 bits
+     */
+    BinaryCodec<Long> LONG_CODEC = new BinaryCodec<Long>() {
+        @Override
+        public void write(final DataOutput out, final Long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        @Override
+        public Long read(final DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    /**
+     * Encodes nothing. Used as the value codec of sets, where every key maps to {@link Boolean#TRUE}
+     */
+    BinaryCodec<Boolean> PRESENT_CODEC = new BinaryCodec<Boolean>() {
+        @Override
+        public void write(final DataOutput out, final Boolean value) {}
+
+        @Override
+        public Boolean read(final DataInput in) {
+            return Boolean.TRUE;
+        }
+    };
+
+    /**
+     * Write a value
+     *
+     * @param out   The output to write to
+     * @param value The value
+     *
+     * @throws IOException If an error occurred while writing
+     */
+    void write(DataOutput out, T value) throws IOException;
+
+    /**
+     * Read a value
+     *
+     * @param in The input to read from
+     *
+     * @return The value
+     *
+     * @throws IOException If an error occurred while reading
+     */
+    T read(DataInput in) throws IOException;
+}
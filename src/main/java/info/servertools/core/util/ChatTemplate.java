@@ -0,0 +1,169 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.util.Objects.requireNonNull;
+
+import net.minecraft.util.ChatComponentText;
+import net.minecraft.util.EnumChatFormatting;
+import net.minecraft.util.IChatComponent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+/**
+ * A line of chat text with {@code $NAME$} tokens, parsed once so it can be rendered many times.
+ * <p>
+ * Color tokens such as {@code $DARK_RED$} are replaced by their formatting codes while compiling, so only the remaining placeholders are
+ * looked up when rendering. A line without placeholders is rendered to the same component every time. Placeholders that resolve to
+ * {@code null} are left in the text as they were written.
+ * </p>
+ */
+public final class ChatTemplate {
+
+    private static final Map<String, String> colors = new HashMap<>();
+
+    static {
+        for (EnumChatFormatting color : EnumChatFormatting.values()) {
+            if (color.isColor()) colors.put(color.getFriendlyName().toUpperCase(), color.toString());
+        }
+    }
+
+    private final String[] literals; // One more than there are placeholders, each placeholder goes between two literals
+    private final String[] placeholders;
+    private final int length;
+    @Nullable private final IChatComponent constant;
+
+    private ChatTemplate(final String[] literals, final String[] placeholders) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.length = length;
+        // Never mutated after this, so every player can be sent the same instance
+        this.constant = placeholders.length == 0 ? new ChatComponentText(literals[0]) : null;
+    }
+
+    /**
+     * Compile a line of text
+     *
+     * @param source The text
+     *
+     * @return The template
+     */
+    public static ChatTemplate compile(final String source) {
+        requireNonNull(source, "source");
+        final List<String> literals = new ArrayList<>();
+        final List<String> placeholders = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder(source.length());
+        int i = 0;
+        while (i < source.length()) {
+            final int start = source.indexOf('$', i);
+            final int end = start == -1 ? -1 : source.indexOf('$', start + 1);
+            if (end == -1) {
+                literal.append(source, i, source.length());
+                break;
+            }
+            literal.append(source, i, start);
+            final String name = source.substring(start + 1, end);
+            if (!isName(name)) {
+                // Not a token, but the closing $ may open the next one
+                literal.append('$');
+                i = start + 1;
+                continue;
+            }
+            @Nullable final String color = colors.get(name);
+            if (color != null) {
+                literal.append(color);
+            } else {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                placeholders.add(name);
+            }
+            i = end + 1;
+        }
+        literals.add(literal.toString());
+        return new ChatTemplate(literals.toArray(new String[literals.size()]), placeholders.toArray(new String[placeholders.size()]));
+    }
+
+    private static boolean isName(final String name) {
+        if (name.isEmpty()) return false;
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if ((c < 'A' || c > 'Z') && (c < '0' || c > '9') && c != '_') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Render the template
+     *
+     * @param resolver Gets the value of a placeholder by its name, or {@code null} to leave the placeholder as it was written
+     *
+     * @return The chat component. Must not be modified, it may be shared
+     */
+    public IChatComponent render(final Function<String, String> resolver) {
+        if (constant != null) return constant;
+        return new ChatComponentText(renderText(resolver));
+    }
+
+    /**
+     * Render the template to a string
+     *
+     * @param resolver Gets the value of a placeholder by its name, or {@code null} to leave the placeholder as it was written
+     *
+     * @return The text
+     */
+    public String renderText(final Function<String, String> resolver) {
+        if (placeholders.length == 0) return literals[0];
+        final StringBuilder builder = new StringBuilder(length + 16 * placeholders.length);
+        for (int i = 0; i < placeholders.length; i++) {
+            builder.append(literals[i]);
+            @Nullable final String value = resolver.apply(placeholders[i]);
+            if (value != null) {
+                builder.append(value);
+            } else {
+                builder.append('$').append(placeholders[i]).append('$');
+            }
+        }
+        return builder.append(literals[placeholders.length]).toString();
+    }
+
+    /**
+     * Get the names of the placeholders in the template, in order
+     *
+     * @return The names
+     */
+    public List<String> getPlaceholders() {
+        return Arrays.asList(placeholders.clone());
+    }
+
+    @Override
+    public String toString() {
+        return renderText(name -> null);
+    }
+}
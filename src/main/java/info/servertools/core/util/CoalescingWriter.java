@@ -0,0 +1,211 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses bursts of changes to a data file into a single write.
+ * <p>
+ * Owners {@linkplain #markDirty() mark} the file dirty after every mutation instead of saving it. The first mark schedules a write on the
+ * {@linkplain FileIO IO thread} after the save interval, and every mark made before that write starts is served by it. Changes made while
+ * a write is running schedule another one, so the latest state always reaches the disk.
+ * </p>
+ */
+public final class CoalescingWriter {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final Collection<CoalescingWriter> writers = new CopyOnWriteArrayList<>();
+
+    private final Path file;
+    private final long interval;
+    private final Sink sink;
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final AtomicLong dirtyCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * Construct a new CoalescingWriter
+     *
+     * @param file     The file that is written
+     * @param interval The number of milliseconds to wait after the first change before writing
+     * @param sink     The function that writes the current state to the file
+     */
+    public CoalescingWriter(final Path file, final long interval, final Sink sink) {
+        this.file = Objects.requireNonNull(file, "file");
+        this.sink = Objects.requireNonNull(sink, "sink");
+        this.interval = Math.max(0, interval);
+        writers.add(this);
+    }
+
+    /**
+     * Mark the file as changed. This never blocks and never touches the disk.
+     */
+    public void markDirty() {
+        dirtyCount.incrementAndGet();
+        if (pending.compareAndSet(false, true)) {
+            FileIO.scheduleSnapshot("write", file, FileIO.Priority.NORMAL, this::writeIfPending, interval, MILLISECONDS);
+        }
+    }
+
+    /**
+     * Immediately write the file on the calling thread if there are changes that haven't been written yet
+     */
+    public void flush() {
+        writeIfPending();
+    }
+
+    private void writeIfPending() {
+        synchronized (this) {
+            if (!pending.getAndSet(false)) return; // Already written by a flush
+            try {
+                sink.write(file);
+                writeCount.incrementAndGet();
+                log.trace("Wrote {}, {} changes coalesced so far", file, getCoalescedCount());
+            } catch (IOException e) {
+                failureCount.incrementAndGet();
+                log.error("Failed to write {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Get the file that is written
+     *
+     * @return The file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Get the number of times the file has been marked dirty
+     *
+     * @return The number of changes
+     */
+    public long getDirtyCount() {
+        return dirtyCount.get();
+    }
+
+    /**
+     * Get the number of writes that have completed successfully
+     *
+     * @return The number of writes
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * Get the number of writes that failed
+     *
+     * @return The number of failed writes
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Get the number of changes that did not need a write of their own because they were served by another one
+     *
+     * @return The number of coalesced changes
+     */
+    public long getCoalescedCount() {
+        return Math.max(0, dirtyCount.get() - writeCount.get() - failureCount.get() - (pending.get() ? 1 : 0));
+    }
+
+    @Override
+    public String toString() {
+        return "CoalescingWriter{" +
+                "file=" + file +
+                ", dirty=" + dirtyCount +
+                ", writes=" + writeCount +
+                ", failures=" + failureCount +
+                ", coalesced=" + getCoalescedCount() +
+                '}';
+    }
+
+    /**
+     * Get every CoalescingWriter that has been created
+     *
+     * @return An unmodifiable view of the writers
+     */
+    public static Collection<CoalescingWriter> getWriters() {
+        return Collections.unmodifiableCollection(writers);
+    }
+
+    /**
+     * <em>Internal Use Only!</em>
+     * <p>
+     * Write every file that has unwritten changes ahead of any other IO work, and wait until they are written
+     * </p>
+     */
+    public static void flushAll() {
+        final List<Future<?>> flushes = new ArrayList<>();
+        for (CoalescingWriter writer : writers) {
+            flushes.add(FileIO.submitTask("flush", writer.file, FileIO.Priority.HIGH, writer::flush));
+        }
+        for (Future<?> flush : flushes) {
+            try {
+                flush.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.error("Failed to flush", e.getCause());
+            }
+        }
+        log.debug("Flushed {} files", flushes.size());
+    }
+
+    /**
+     * Writes the current state of a data file
+     */
+    @FunctionalInterface
+    public interface Sink {
+
+        /**
+         * Write the current state to the file
+         *
+         * @param file The file to write
+         *
+         * @throws IOException If an error occurred while writing
+         */
+        void write(Path file) throws IOException;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import java.util.AbstractMap;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * A mutable map whose every version is a {@link PersistentMap}.
+ * <p>
+ * Changes build the next version and swap it in, so they cost a few small array copies instead of a copy of the whole map, and
+ * {@link #snapshot()} is a single volatile read. Reads never lock and always see one complete version. Iterating the map iterates the
+ * version that was current when the iteration began, so the IO thread can serialize it while the server thread keeps changing it.
+ * Changes are synchronized, so any thread may make them. Neither keys nor values may be {@code null}.
+ * </p>
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public final class CopyOnWriteMap<K, V> extends AbstractMap<K, V> {
+
+    private volatile PersistentMap<K, V> current = PersistentMap.empty();
+
+    /**
+     * Get the current version of the map. It will never change.
+     *
+     * @return The current version
+     */
+    public PersistentMap<K, V> snapshot() {
+        return current;
+    }
+
+    @Override
+    @Nullable
+    public V get(final Object key) {
+        return current.get(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return current.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return current.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return current.isEmpty();
+    }
+
+    @Override
+    @Nullable
+    public synchronized V put(final K key, final V value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        final PersistentMap<K, V> version = current;
+        current = version.plus(key, value);
+        return version.get(key);
+    }
+
+    @Override
+    @Nullable
+    public synchronized V remove(final Object key) {
+        final PersistentMap<K, V> version = current;
+        current = version.minus(key);
+        return version.get(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        current = PersistentMap.empty();
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return current.entrySet();
+    }
+}
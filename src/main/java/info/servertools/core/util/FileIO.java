@@ -18,39 +18,117 @@
  */
 package info.servertools.core.util;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
 
 /**
- * A utility class for doing File IO. Provides a simple way to execute tasks on a separate tread.
+ * A utility class for doing File IO. Provides a simple way to execute tasks on separate IO threads.
+ * <p>
+ * Every task belongs to a lane, usually named after the file it touches. Tasks in the same lane run one at a time in the order they were
+ * submitted, and different lanes run in parallel on a small pool of threads. When more lanes are waiting than there are threads, the lane
+ * with the most urgent {@linkplain Priority priority} goes first. Tasks submitted without a lane share one default lane, so they keep
+ * running in the order they were submitted.
+ * </p>
+ * <p>
+ * Tasks submitted as {@linkplain #submitSnapshot(String, Object, Priority, Runnable) snapshots} only depend on the latest state of their
+ * file, so a new one replaces a snapshot of the same type and lane that hasn't started yet instead of queueing behind it.
+ * </p>
+ * <p>
+ * Submitting a task never blocks, because tasks are submitted from the server thread. Once {@value #MAX_QUEUED} tasks are waiting, which
+ * means the disk has stalled, {@linkplain Priority#LOW low} and {@linkplain Priority#NORMAL normal} priority tasks are dropped instead
+ * of queued, and the returned Future is already cancelled so the caller can fall back to a snapshot. Snapshots and high priority tasks
+ * are always queued. There can be at most one snapshot of each type per lane, and high priority is only used for the flushes at
+ * shutdown, so neither can grow without bound.
+ * </p>
+ * <p>
+ * Every task has a type, such as {@code journal-append}, and {@linkplain #getMetrics() metrics} are kept for each type.
+ * </p>
  */
 @SuppressWarnings("unused")
 public final class FileIO {
 
     private static final Logger log = LogManager.getLogger();
 
-    private static final ExecutorService service = Executors.newSingleThreadExecutor(r -> new Thread(r, "ServerTools IO Thread"));
+    /**
+     * How urgent a task is
+     */
+    public enum Priority {
+        /**
+         * Flushing data that must not be lost, for example at shutdown
+         */
+        HIGH,
+        /**
+         * Regular writes. Tasks with this priority that aren't snapshots are dropped if the queue is full when they are submitted
+         */
+        NORMAL,
+        /**
+         * Background work such as compaction. Tasks with this priority are dropped if the queue is full when they are submitted or if they
+         * haven't started when the server shuts down
+         */
+        LOW
+    }
+
+    private static final int MAX_QUEUED = 8192;
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final String DEFAULT_LANE = "default";
+    private static final String DEFAULT_TYPE = "task";
+
+    private static final Map<String, IOMetrics> metrics = new ConcurrentHashMap<>();
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition workAvailable = lock.newCondition();
+
+    // All guarded by lock
+    private static final Map<Object, Lane> lanes = new HashMap<>();
+    private static final PriorityQueue<Lane> ready = new PriorityQueue<>();
+    private static int queued;
+    private static int activeWorkers;
+    private static long sequence;
+    private static boolean shuttingDown;
+    private static boolean full;
+
+    private static final Worker[] workers = new Worker[THREADS];
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "ServerTools IO Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
-     * Submit a task to be run on a separate IO thread
+     * Submit a task to be run on the default lane
      *
      * @param runnable The task
      *
      * @return A Future for the task
      */
     public static Future<?> submitTask(Runnable runnable) {
-        return service.submit(runnable);
+        return submitTask(DEFAULT_TYPE, DEFAULT_LANE, Priority.NORMAL, runnable);
     }
 
     /**
-     * Submint a task to be run on a separate IO thread
+     * Submint a task to be run on the default lane
      *
      * @param callable The tatsk
      * @param <T>      The return type of the task
@@ -58,26 +136,383 @@ public final class FileIO {
      * @return A Future for the task
      */
     public static <T> Future<T> submitTask(Callable<T> callable) {
-        return service.submit(callable);
+        return submitTask(DEFAULT_TYPE, DEFAULT_LANE, Priority.NORMAL, callable);
+    }
+
+    /**
+     * Submit a task to be run after every earlier task of the same lane
+     *
+     * @param type     The type of task, used to group {@linkplain #getMetrics() metrics}
+     * @param lane     The lane, usually the {@linkplain java.nio.file.Path file} the task touches
+     * @param priority The priority of the task
+     * @param runnable The task
+     *
+     * @return A Future for the task, which is already cancelled if the task was dropped
+     */
+    public static Future<?> submitTask(String type, Object lane, Priority priority, Runnable runnable) {
+        return enqueue(lane, new Task<>(runnable, metricsFor(type), priority, false));
+    }
+
+    /**
+     * Submit a task to be run after every earlier task of the same lane
+     *
+     * @param type     The type of task, used to group {@linkplain #getMetrics() metrics}
+     * @param lane     The lane, usually the {@linkplain java.nio.file.Path file} the task touches
+     * @param priority The priority of the task
+     * @param callable The task
+     * @param <T>      The return type of the task
+     *
+     * @return A Future for the task, which is already cancelled if the task was dropped
+     */
+    public static <T> Future<T> submitTask(String type, Object lane, Priority priority, Callable<T> callable) {
+        return enqueue(lane, new Task<>(callable, metricsFor(type), priority, false));
+    }
+
+    /**
+     * Submit a task that only depends on the latest state of its file, such as writing a complete snapshot of some data. A snapshot of the
+     * same type and lane that hasn't started yet is cancelled, because this one makes it redundant. Snapshots are never dropped.
+     *
+     * @param type     The type of task, used to group {@linkplain #getMetrics() metrics} and to find the snapshots this one replaces
+     * @param lane     The lane, usually the {@linkplain java.nio.file.Path file} that is written
+     * @param priority The priority of the task
+     * @param runnable The task
+     *
+     * @return A Future for the task
+     */
+    public static Future<?> submitSnapshot(String type, Object lane, Priority priority, Runnable runnable) {
+        return enqueue(lane, new Task<>(runnable, metricsFor(type), priority, true));
+    }
+
+    /**
+     * Schedule a task to be run on the default lane after a delay
+     *
+     * @param runnable The task
+     * @param delay    The delay before the task is run
+     * @param unit     The unit of {@code delay}
+     *
+     * @return A ScheduledFuture for submitting the task
+     */
+    public static ScheduledFuture<?> scheduleTask(Runnable runnable, long delay, TimeUnit unit) {
+        return scheduleTask(DEFAULT_TYPE, DEFAULT_LANE, Priority.NORMAL, runnable, delay, unit);
+    }
+
+    /**
+     * Schedule a task to be submitted to a lane after a delay
+     *
+     * @param type     The type of task, used to group {@linkplain #getMetrics() metrics}
+     * @param lane     The lane, usually the {@linkplain java.nio.file.Path file} the task touches
+     * @param priority The priority of the task
+     * @param runnable The task
+     * @param delay    The delay before the task is submitted
+     * @param unit     The unit of {@code delay}
+     *
+     * @return A ScheduledFuture for submitting the task
+     */
+    public static ScheduledFuture<?> scheduleTask(String type, Object lane, Priority priority, Runnable runnable, long delay, TimeUnit unit) {
+        return timer.schedule(() -> submitTask(type, lane, priority, runnable), delay, unit);
+    }
+
+    /**
+     * Schedule a {@linkplain #submitSnapshot(String, Object, Priority, Runnable) snapshot} to be submitted to a lane after a delay
+     *
+     * @param type     The type of task, used to group {@linkplain #getMetrics() metrics} and to find the snapshots this one replaces
+     * @param lane     The lane, usually the {@linkplain java.nio.file.Path file} that is written
+     * @param priority The priority of the task
+     * @param runnable The task
+     * @param delay    The delay before the task is submitted
+     * @param unit     The unit of {@code delay}
+     *
+     * @return A ScheduledFuture for submitting the task
+     */
+    public static ScheduledFuture<?> scheduleSnapshot(String type, Object lane, Priority priority, Runnable runnable, long delay,
+                                                      TimeUnit unit) {
+        return timer.schedule(() -> submitSnapshot(type, lane, priority, runnable), delay, unit);
+    }
+
+    /**
+     * Get the metrics of every type of task that has been submitted
+     *
+     * @return An unmodifiable view of the metrics by task type
+     */
+    public static Map<String, IOMetrics> getMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Get the number of tasks that are waiting to start
+     *
+     * @return The queue depth
+     */
+    public static int getQueueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of lanes that have tasks queued or running
+     *
+     * @return The number of lanes
+     */
+    public static int getActiveLanes() {
+        lock.lock();
+        try {
+            return lanes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of IO threads
+     *
+     * @return The number of threads
+     */
+    public static int getThreadCount() {
+        return THREADS;
+    }
+
+    private static IOMetrics metricsFor(final String type) {
+        return metrics.computeIfAbsent(type, IOMetrics::new);
+    }
+
+    private static <T> Future<T> enqueue(final Object key, final Task<T> task) {
+        task.metrics.submitted();
+        lock.lock();
+        try {
+            if (activeWorkers > 0) {
+                if (queued >= MAX_QUEUED) {
+                    if (!full) {
+                        full = true;
+                        log.warn("The IO queue is full with {} tasks, dropping tasks that aren't snapshots until it drains", queued);
+                    }
+                    if (!task.snapshot && task.priority != Priority.HIGH) {
+                        task.cancel(false);
+                        task.metrics.cancelled();
+                        return task;
+                    }
+                }
+
+                final Lane lane = lanes.computeIfAbsent(key, Lane::new);
+                if (task.snapshot) {
+                    // The lane gets a new task right away, so it can stay in the ready queue even if this empties it
+                    cancelSnapshots(lane, task.metrics);
+                }
+                lane.tasks.add(task);
+                queued++;
+                if (!lane.running) {
+                    if (!lane.queued) {
+                        makeReady(lane);
+                    } else if (task.priority.compareTo(lane.priority) < 0) {
+                        ready.remove(lane);
+                        lane.priority = task.priority;
+                        ready.add(lane);
+                    }
+                }
+                return task;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The workers have shut down, nothing else would ever run the task
+        task.runAndRecord();
+        return task;
+    }
+
+    /**
+     * Cancel the queued snapshots of a lane that have the same type
+     */
+    private static void cancelSnapshots(final Lane lane, final IOMetrics type) {
+        for (Iterator<Task<?>> iterator = lane.tasks.iterator(); iterator.hasNext(); ) {
+            final Task<?> task = iterator.next();
+            if (task.snapshot && task.metrics == type) {
+                iterator.remove();
+                task.cancel(false);
+                task.metrics.cancelled();
+                queued--;
+            }
+        }
+    }
+
+    /**
+     * Cancel the queued tasks of a lane that have at most the given priority
+     */
+    private static void cancelQueued(final Lane lane, final Priority atMost) {
+        for (Iterator<Task<?>> iterator = lane.tasks.iterator(); iterator.hasNext(); ) {
+            final Task<?> task = iterator.next();
+            if (task.priority.compareTo(atMost) >= 0) {
+                iterator.remove();
+                task.cancel(false);
+                task.metrics.cancelled();
+                queued--;
+            }
+        }
+    }
+
+    private static void makeReady(final Lane lane) {
+        Priority priority = Priority.LOW;
+        for (Task<?> task : lane.tasks) {
+            if (task.priority.compareTo(priority) < 0) priority = task.priority;
+        }
+        lane.priority = priority;
+        lane.order = sequence++;
+        lane.queued = true;
+        ready.add(lane);
+        workAvailable.signal();
+    }
+
+    private static final class Worker extends Thread {
+
+        Worker(final int id) {
+            super("ServerTools IO Thread #" + id);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Lane lane;
+                final Task<?> task;
+                lock.lock();
+                try {
+                    while (ready.isEmpty()) {
+                        if (shuttingDown) {
+                            activeWorkers--;
+                            return;
+                        }
+                        workAvailable.awaitUninterruptibly();
+                    }
+                    lane = ready.poll();
+                    lane.queued = false;
+                    lane.running = true;
+                    task = lane.tasks.poll();
+                    if (--queued < MAX_QUEUED / 2 && full) {
+                        full = false;
+                        log.info("The IO queue has drained to {} tasks", queued);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                task.runAndRecord();
+
+                lock.lock();
+                try {
+                    lane.running = false;
+                    if (lane.tasks.isEmpty()) {
+                        lanes.remove(lane.key);
+                    } else {
+                        makeReady(lane);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static final class Lane implements Comparable<Lane> {
+
+        final Object key;
+        final ArrayDeque<Task<?>> tasks = new ArrayDeque<>();
+        Priority priority = Priority.NORMAL;
+        long order;
+        boolean queued; // Waiting in the ready queue
+        boolean running;
+
+        Lane(final Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(final Lane other) {
+            final int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(order, other.order);
+        }
+    }
+
+    private static final class Task<T> extends FutureTask<T> {
+
+        final IOMetrics metrics;
+        final Priority priority;
+        final boolean snapshot;
+        final long submitTime = System.nanoTime();
+        private boolean failed; // Only used from the thread running the task
+
+        Task(final Callable<T> callable, final IOMetrics metrics, final Priority priority, final boolean snapshot) {
+            super(callable);
+            this.metrics = metrics;
+            this.priority = priority;
+            this.snapshot = snapshot;
+        }
+
+        Task(final Runnable runnable, final IOMetrics metrics, final Priority priority, final boolean snapshot) {
+            super(runnable, null);
+            this.metrics = metrics;
+            this.priority = priority;
+            this.snapshot = snapshot;
+        }
+
+        void runAndRecord() {
+            final long start = System.nanoTime();
+            metrics.started(start - submitTime);
+            run();
+            metrics.finished(System.nanoTime() - start, !failed);
+        }
+
+        @Override
+        protected void setException(final Throwable t) {
+            failed = true;
+            log.error("IO task {} failed", metrics.getType(), t);
+            super.setException(t);
+        }
     }
 
     /**
      * <em>Internal Use Only!</em>
      */
     public static void shutDown() {
-        service.shutdown();
+        timer.shutdown();
+        lock.lock();
+        try {
+            shuttingDown = true;
+            for (Iterator<Lane> iterator = lanes.values().iterator(); iterator.hasNext(); ) {
+                final Lane lane = iterator.next();
+                cancelQueued(lane, Priority.LOW);
+                if (lane.tasks.isEmpty() && !lane.running) {
+                    ready.remove(lane);
+                    iterator.remove();
+                }
+            }
+            workAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        final long deadline = System.nanoTime() + SECONDS.toNanos(30);
         try {
-            service.awaitTermination(30, SECONDS);
+            for (Worker worker : workers) {
+                NANOSECONDS.timedJoin(worker, Math.max(1, deadline - System.nanoTime()));
+            }
         } catch (InterruptedException e) {
             log.catching(e);
         }
     }
 
     static {
+        activeWorkers = THREADS;
+        for (int i = 0; i < THREADS; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
         Runtime.getRuntime().addShutdownHook(new Thread("ServerTool IO Shutdown Thread") {
             @Override
             public void run() {
                 log.trace("Shutting down FileIO");
+                CoalescingWriter.flushAll();
                 shutDown();
                 log.trace("FileIO successfully shutdown");
             }
@@ -0,0 +1,213 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reloads files when they are changed on disk.
+ * <p>
+ * One background thread watches the directories of every watched file. Editors usually write a file in several steps, so a change only
+ * triggers a reload once the file has been left alone for {@value #DEBOUNCE_MILLIS} ms. The file is then parsed on the
+ * {@linkplain FileIO IO thread}, in the file's own lane so it never reads a file that is half written by ServerTools itself. The parsed
+ * state is handed to the server thread, which swaps it in, so ticks never wait on the disk and never see half parsed state. A file that
+ * fails to parse is logged and the current state is kept. Reloads are queued as snapshots, so they are never dropped when the IO queue is
+ * full and a newer reload replaces one that hasn't started yet.
+ * </p>
+ */
+public final class FileWatcher {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private static final Map<Path, Watch<?>> watches = new ConcurrentHashMap<>();
+
+    // Guarded by FileWatcher.class
+    private static final Map<WatchKey, Path> directories = new HashMap<>();
+    @Nullable private static WatchService service;
+
+    /**
+     * Reload a file whenever it changes. Replaces any previous watch of the same file.
+     *
+     * @param file   The file
+     * @param parser Reads the file. Run on an IO thread
+     * @param apply  Swaps the new state in. Run on the server thread
+     * @param <T>    The type of the parsed state
+     *
+     * @throws IOException If the file's directory can't be watched
+     */
+    public static <T> void watch(final Path file, final Parser<T> parser, final Consumer<T> apply) throws IOException {
+        Objects.requireNonNull(file, "file");
+        Objects.requireNonNull(parser, "parser");
+        Objects.requireNonNull(apply, "apply");
+        final Path path = file.toAbsolutePath().normalize();
+        final Path directory = path.getParent();
+        synchronized (FileWatcher.class) {
+            if (service == null) {
+                service = FileSystems.getDefault().newWatchService();
+                final Thread thread = new Thread(new Watcher(service), "ServerTools File Watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            if (!directories.containsValue(directory)) {
+                directories.put(directory.register(service, ENTRY_CREATE, ENTRY_MODIFY), directory);
+            }
+        }
+        watches.put(path, new Watch<>(path, parser, apply));
+        log.debug("Watching {} for changes", path);
+    }
+
+    /**
+     * <em>Internal Use Only!</em>
+     * <p>
+     * Stop watching every file
+     * </p>
+     */
+    public static synchronized void shutDown() {
+        watches.clear();
+        directories.clear();
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the file watcher", e);
+            }
+            service = null;
+        }
+    }
+
+    private static void changed(final Path path) {
+        @Nullable final Watch<?> watch = watches.get(path);
+        if (watch != null) watch.changed();
+    }
+
+    /**
+     * Reads the state of a watched file
+     *
+     * @param <T> The type of the state
+     */
+    @FunctionalInterface
+    public interface Parser<T> {
+
+        /**
+         * Read and parse the file
+         *
+         * @param file The file
+         *
+         * @return The parsed state
+         *
+         * @throws Exception If the file couldn't be read or parsed
+         */
+        T parse(Path file) throws Exception;
+    }
+
+    private static final class Watch<T> {
+
+        private final Path file;
+        private final Parser<T> parser;
+        private final Consumer<T> apply;
+        @Nullable private ScheduledFuture<?> pending;
+
+        Watch(final Path file, final Parser<T> parser, final Consumer<T> apply) {
+            this.file = file;
+            this.parser = parser;
+            this.apply = apply;
+        }
+
+        synchronized void changed() {
+            if (pending != null) pending.cancel(false);
+            pending = FileIO.scheduleSnapshot("reload", file, FileIO.Priority.NORMAL, this::reload, DEBOUNCE_MILLIS, MILLISECONDS);
+        }
+
+        private void reload() {
+            final T state;
+            try {
+                state = parser.parse(file);
+            } catch (Exception e) {
+                log.error("Failed to reload {}, keeping the current version", file, e);
+                return;
+            }
+            ServerUtils.callFromMainThread(() -> {
+                if (watches.get(file) != this) return; // Stopped or replaced while parsing
+                apply.accept(state);
+                log.info("Reloaded {}", file);
+            });
+        }
+    }
+
+    private static final class Watcher implements Runnable {
+
+        private final WatchService service;
+
+        Watcher(final WatchService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final WatchKey key = service.take();
+                    @Nullable final Path directory;
+                    synchronized (FileWatcher.class) {
+                        directory = directories.get(key);
+                    }
+                    if (directory != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == OVERFLOW) {
+                                // Events were lost, so reload everything in the directory
+                                watches.keySet().stream().filter(path -> directory.equals(path.getParent())).forEach(FileWatcher::changed);
+                            } else {
+                                changed(directory.resolve((Path) event.context()));
+                            }
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                log.trace("File watcher stopped");
+            }
+        }
+    }
+
+    private FileWatcher() {}
+}
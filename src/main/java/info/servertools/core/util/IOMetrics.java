@@ -0,0 +1,146 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies for one type of {@linkplain FileIO IO task}
+ */
+public final class IOMetrics {
+
+    private final String type;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram runLatency = new LatencyHistogram();
+
+    IOMetrics(final String type) {
+        this.type = type;
+    }
+
+    void submitted() {
+        submitted.incrementAndGet();
+    }
+
+    void cancelled() {
+        cancelled.incrementAndGet();
+    }
+
+    void started(final long queuedNanos) {
+        started.incrementAndGet();
+        queueLatency.record(queuedNanos);
+    }
+
+    void finished(final long runNanos, final boolean success) {
+        (success ? completed : failed).incrementAndGet();
+        runLatency.record(runNanos);
+    }
+
+    /**
+     * Get the name of the task type
+     *
+     * @return The name
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Get the number of tasks that are waiting to start
+     *
+     * @return The number of queued tasks
+     */
+    public long getQueued() {
+        return Math.max(0, submitted.get() - started.get() - cancelled.get());
+    }
+
+    /**
+     * Get the number of tasks that are running right now
+     *
+     * @return The number of running tasks
+     */
+    public long getRunning() {
+        return Math.max(0, started.get() - completed.get() - failed.get());
+    }
+
+    /**
+     * Get the number of tasks that finished normally
+     *
+     * @return The number of completed tasks
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Get the number of tasks that threw an exception
+     *
+     * @return The number of failed tasks
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Get the number of tasks that were cancelled before they started, because they were superseded or dropped at shutdown
+     *
+     * @return The number of cancelled tasks
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * Get the time tasks spent between being submitted and starting
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * Get the time tasks spent running
+     *
+     * @return The histogram
+     */
+    public LatencyHistogram getRunLatency() {
+        return runLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "IOMetrics{" +
+                "type='" + type + '\'' +
+                ", queued=" + getQueued() +
+                ", running=" + getRunning() +
+                ", completed=" + completed +
+                ", failed=" + failed +
+                ", cancelled=" + cancelled +
+                ", queueLatency=" + queueLatency +
+                ", runLatency=" + runLatency +
+                '}';
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * An append-only log of changes to a map that sits next to a snapshot of that map.
+ * <p>
+ * Every change appends one small checksummed record on the {@linkplain FileIO IO thread}, so the cost of a change does not depend on how
+ * much data is stored. Once the journal grows past its compaction threshold a fresh snapshot is written and the journal is emptied. At
+ * startup the snapshot is loaded and the journal is {@linkplain #replay(Map) replayed} on top of it. A record that was only partially
+ * written when the server died is detected by its length and checksum and discarded.
+ * </p>
+ * <p>
+ * Records are full sets or deletes, so replaying a record that is already contained in the snapshot is harmless. This is what makes it
+ * safe to take the snapshot from the live map while changes keep being made. It also lets changes made while the IO queue is full skip
+ * their record and be covered by an early compaction instead.
+ * </p>
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public final class Journal<K, V> {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final byte OP_SET = 1;
+    private static final byte OP_DELETE = 2;
+
+    private static final int HEADER_SIZE = 8; // Payload length + CRC32 of the payload
+    private static final int MAX_PAYLOAD_SIZE = 1 << 20;
+
+    private final Path file;
+    private final BinaryCodec<K> keyCodec;
+    private final BinaryCodec<V> valueCodec;
+    private final long compactThreshold;
+    private final Path snapshotFile;
+    private final CoalescingWriter.Sink snapshotSink;
+
+    @Nullable
+    private FileChannel channel; // Only used from this journal's IO lane
+
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+
+    /**
+     * Construct a new Journal
+     *
+     * @param snapshotFile     The snapshot this journal belongs to. The journal itself is stored {@linkplain #fileFor(Path) next to it}
+     * @param snapshotSink     The function that writes a snapshot of the current state when the journal is compacted
+     * @param keyCodec         The codec for keys
+     * @param valueCodec       The codec for values
+     * @param compactThreshold The size in bytes the journal may grow to before it is compacted
+     */
+    public Journal(final Path snapshotFile, final CoalescingWriter.Sink snapshotSink,
+                   final BinaryCodec<K> keyCodec, final BinaryCodec<V> valueCodec, final long compactThreshold) {
+        this.snapshotFile = Objects.requireNonNull(snapshotFile, "snapshotFile");
+        this.snapshotSink = Objects.requireNonNull(snapshotSink, "snapshotSink");
+        this.keyCodec = Objects.requireNonNull(keyCodec, "keyCodec");
+        this.valueCodec = Objects.requireNonNull(valueCodec, "valueCodec");
+        this.compactThreshold = compactThreshold;
+        this.file = fileFor(snapshotFile);
+    }
+
+    /**
+     * Get the journal file that belongs to a snapshot
+     *
+     * @param snapshotFile The snapshot file
+     *
+     * @return The journal file
+     */
+    public static Path fileFor(final Path snapshotFile) {
+        return snapshotFile.resolveSibling(snapshotFile.getFileName() + ".journal");
+    }
+
+    /**
+     * Apply every complete record in the journal to a map, and cut off an incomplete record at the end if there is one.
+     * <p>
+     * This must be called before any changes are recorded.
+     * </p>
+     *
+     * @param map The map, usually freshly loaded from the snapshot
+     *
+     * @return The number of records that were applied
+     *
+     * @throws IOException If the journal could not be read
+     */
+    public int replay(final Map<K, V> map) throws IOException {
+        if (!Files.exists(file)) return 0;
+
+        long validLength = 0;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                final int checksum;
+                final byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length <= 0 || length > MAX_PAYLOAD_SIZE) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != checksum) break;
+
+                apply(payload, map);
+                validLength += HEADER_SIZE + length;
+                count++;
+            }
+        }
+
+        final long fileLength = Files.size(file);
+        if (validLength < fileLength) {
+            log.warn("Discarding {} bytes of incomplete records at the end of {}", fileLength - validLength, file);
+            try (FileChannel channel = FileChannel.open(file, WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        size.set(validLength);
+        log.debug("Replayed {} records from {}", count, file);
+        return count;
+    }
+
+    private void apply(final byte[] payload, final Map<K, V> map) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final byte op = in.readByte();
+        final K key = keyCodec.read(in);
+        if (op == OP_SET) {
+            map.put(key, valueCodec.read(in));
+        } else if (op == OP_DELETE) {
+            map.remove(key);
+        } else {
+            throw new IOException("Unknown journal operation " + op + " in " + file);
+        }
+    }
+
+    /**
+     * Record that a key was set
+     *
+     * @param key   The key
+     * @param value The new value
+     */
+    public void set(final K key, final V value) {
+        append(encode(OP_SET, key, value));
+    }
+
+    /**
+     * Record that a key was deleted
+     *
+     * @param key The key
+     */
+    public void delete(final K key) {
+        append(encode(OP_DELETE, key, null));
+    }
+
+    private byte[] encode(final byte op, final K key, @Nullable final V value) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(0); // Header placeholder
+            out.writeByte(op);
+            keyCodec.write(out, key);
+            if (value != null) valueCodec.write(out, value);
+
+            final byte[] record = bytes.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+            ByteBuffer.wrap(record).putInt(record.length - HEADER_SIZE).putInt((int) crc.getValue());
+            return record;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode journal record for " + key, e);
+        }
+    }
+
+    private void append(final byte[] record) {
+        recordCount.incrementAndGet();
+        final Future<?> append = FileIO.submitTask("journal-append", file, FileIO.Priority.NORMAL, () -> {
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap(record);
+                final FileChannel channel = channel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to append to journal " + file, e);
+            }
+        });
+        if (append.isCancelled()) {
+            // The IO queue is full. A compaction queued behind the appends that made it writes a snapshot that includes this change, and
+            // replaces any overflow compaction that hasn't started yet
+            FileIO.submitSnapshot("journal-overflow", file, FileIO.Priority.NORMAL, this::compact);
+            return;
+        }
+        final long newSize = size.addAndGet(record.length);
+        if (newSize >= compactThreshold && compactionPending.compareAndSet(false, true)) {
+            if (FileIO.submitTask("journal-compact", file, FileIO.Priority.LOW, this::compact).isCancelled()) {
+                compactionPending.set(false); // Dropped because the IO queue is full, try again after a later append
+            }
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(file, CREATE, WRITE);
+            channel.position(channel.size());
+        }
+        return channel;
+    }
+
+    private void compact() {
+        try {
+            final Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            snapshotSink.write(tempFile);
+            Files.move(tempFile, snapshotFile, REPLACE_EXISTING, ATOMIC_MOVE);
+
+            // Everything appended before this task is now part of the snapshot
+            final FileChannel channel = channel();
+            final long compacted = channel.size();
+            channel.truncate(0);
+            channel.position(0);
+            size.addAndGet(-compacted);
+            compactionCount.incrementAndGet();
+            log.debug("Compacted {} bytes of {} into {}", compacted, file, snapshotFile);
+        } catch (IOException e) {
+            log.error("Failed to compact journal {}", file, e);
+        } finally {
+            compactionPending.set(false);
+        }
+    }
+
+    /**
+     * Get the journal file
+     *
+     * @return The file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Get the current size of the journal, including records that are still waiting to be written
+     *
+     * @return The size in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Get the number of records that have been appended since startup
+     *
+     * @return The number of records
+     */
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * Get the number of times the journal has been compacted since startup
+     *
+     * @return The number of compactions
+     */
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Journal{" +
+                "file=" + file +
+                ", size=" + size +
+                ", records=" + recordCount +
+                ", compactions=" + compactionCount +
+                '}';
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Reads and writes values of a type as JSON using Gson's streaming API, without reflection
+ *
+ * @param <T> The type of value
+ */
+public interface JsonCodec<T> {
+
+    /**
+     * Encodes {@link Location}s as {@code {"dim":0,"x":0.5,"y":64.0,"z":0.5}}, the same form Gson produces by reflection
+     */
+    JsonCodec<Location> LOCATION_CODEC = new JsonCodec<Location>() {
+        @Override
+        public void write(final JsonWriter out, final Location value) throws IOException {
+            out.beginObject();
+            out.name("dim").value(value.getDim());
+            out.name("x").value(value.getX());
+            out.name("y").value(value.getY());
+            out.name("z").value(value.getZ());
+            out.endObject();
+        }
+
+        @Override
+        public Location read(final JsonReader in) throws IOException {
+            int dim = 0;
+            double x = 0, y = 0, z = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "dim":
+                        dim = in.nextInt();
+                        break;
+                    case "x":
+                        x = in.nextDouble();
+                        break;
+                    case "y":
+                        y = in.nextDouble();
+                        break;
+                    case "z":
+                        z = in.nextDouble();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Location(dim, x, y, z);
+        }
+    };
+
+    /**
+     * Encodes {@link Long}s as JSON numbers
+     */
+    JsonCodec<Long> LONG_CODEC = new JsonCodec<Long>() {
+        @Override
+        public void write(final JsonWriter out, final Long value) throws IOException {
+            out.value(value.longValue());
+        }
+
+        @Override
+        public Long read(final JsonReader in) throws IOException {
+            return in.nextLong();
+        }
+    };
+
+    /**
+     * Create a codec for maps that are stored as JSON objects
+     *
+     * @param keyParser  Parses a key from its {@linkplain String#valueOf(Object) string form}
+     * @param valueCodec The codec for values
+     * @param mapFactory Creates the maps that are read
+     * @param <K>        The key type
+     * @param <V>        The value type
+     * @param <M>        The map type
+     *
+     * @return The codec
+     */
+    static <K, V, M extends Map<K, V>> JsonCodec<M> mapCodec(final Function<String, K> keyParser, final JsonCodec<V> valueCodec,
+                                                               final Supplier<M> mapFactory) {
+        Objects.requireNonNull(keyParser, "keyParser");
+        Objects.requireNonNull(valueCodec, "valueCodec");
+        Objects.requireNonNull(mapFactory, "mapFactory");
+        return new JsonCodec<M>() {
+            @Override
+            public void write(final JsonWriter out, final M value) throws IOException {
+                out.beginObject();
+                for (Map.Entry<K, V> entry : value.entrySet()) {
+                    out.name(String.valueOf(entry.getKey()));
+                    valueCodec.write(out, entry.getValue());
+                }
+                out.endObject();
+            }
+
+            @Override
+            public M read(final JsonReader in) throws IOException {
+                final M map = mapFactory.get();
+                in.beginObject();
+                while (in.hasNext()) {
+                    final K key = keyParser.apply(in.nextName());
+                    if (in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                    } else {
+                        map.put(key, valueCodec.read(in));
+                    }
+                }
+                in.endObject();
+                return map;
+            }
+        };
+    }
+
+    /**
+     * Write a value
+     *
+     * @param out   The writer to write to
+     * @param value The value
+     *
+     * @throws IOException If an error occurred while writing
+     */
+    void write(JsonWriter out, T value) throws IOException;
+
+    /**
+     * Read a value
+     *
+     * @param in The reader to read from
+     *
+     * @return The value
+     *
+     * @throws IOException If an error occurred while reading, or the JSON was malformed
+     */
+    T read(JsonReader in) throws IOException;
+}
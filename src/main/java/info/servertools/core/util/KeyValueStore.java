@@ -0,0 +1,539 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import info.servertools.core.Constants;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory map that persists itself using one of several {@linkplain StorageMode storage backends}.
+ * <p>
+ * Features hold their data in a store instead of managing their own files. Reads never touch the disk. Every change is handed to the
+ * backend, which decides how it reaches the disk:
+ * </p>
+ * <ul>
+ * <li>{@link StorageMode#JSON} rewrites a JSON file through a {@link CoalescingWriter}</li>
+ * <li>{@link StorageMode#BINARY} rewrites a compact binary file through a {@link CoalescingWriter}</li>
+ * <li>{@link StorageMode#JOURNAL} appends each change to a {@link Journal} that is compacted into a JSON snapshot</li>
+ * <li>{@link StorageMode#MAPPED} updates a {@link MappedLocationTable} in place. Only available for {@link StoreCodec#UUID_LOCATIONS}</li>
+ * </ul>
+ * <p>
+ * All backends use files named after the JSON file, for example {@code homes.json}, {@code homes.json.journal}, {@code homes.bin} and
+ * {@code homes.dat}. When a store is opened and its backend has no data yet, the data of any other backend is imported and the old files
+ * are renamed to {@code .migrated}. This is what lets a server switch backends by changing its configuration.
+ * </p>
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public abstract class KeyValueStore<K, V> {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int BINARY_MAGIC = 0x53544B56; // STKV
+    private static final int BINARY_VERSION = 1;
+
+    final Path jsonFile;
+    final StoreCodec<K, V> codec;
+    final Map<K, V> map;
+
+    KeyValueStore(final Path jsonFile, final StoreCodec<K, V> codec, final Map<K, V> map) {
+        this.jsonFile = Objects.requireNonNull(jsonFile, "jsonFile");
+        this.codec = Objects.requireNonNull(codec, "codec");
+        this.map = Objects.requireNonNull(map, "map");
+    }
+
+    /**
+     * Open a store and load its data
+     *
+     * @param mode             The backend to use. Backends that can't store this kind of data fall back to {@link StorageMode#JSON}
+     * @param jsonFile         The JSON file of the store. The files of the other backends are named after it
+     * @param codec            The codec for the entries
+     * @param mapFactory       Creates the map that holds the data in memory. It must be safe to iterate from the IO thread, a
+     *                         {@link CopyOnWriteMap} lets the IO thread write a consistent version
+     * @param saveInterval     The number of milliseconds to wait after a change before rewriting a file
+     * @param compactThreshold The size in bytes a journal may grow to before it is compacted
+     * @param <K>              The key type
+     * @param <V>              The value type
+     *
+     * @return The store
+     *
+     * @throws IOException If the data could not be loaded
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> KeyValueStore<K, V> open(final StorageMode mode, final Path jsonFile, final StoreCodec<K, V> codec,
+                                                  final Supplier<? extends Map<K, V>> mapFactory,
+                                                  final long saveInterval, final long compactThreshold) throws IOException {
+        final KeyValueStore<K, V> store;
+        if (mode == StorageMode.JOURNAL) {
+            store = new JournalStore<>(jsonFile, codec, mapFactory.get(), compactThreshold);
+        } else if (mode == StorageMode.BINARY) {
+            store = new SnapshotStore<>(StorageMode.BINARY, jsonFile, codec, mapFactory.get(), saveInterval);
+        } else if (mode == StorageMode.MAPPED && codec == StoreCodec.UUID_LOCATIONS) {
+            store = (KeyValueStore<K, V>) MappedStore.open(jsonFile, saveInterval);
+        } else {
+            if (mode != StorageMode.JSON) {
+                log.warn("{} can't be stored using {}, falling back to {}", jsonFile.getFileName(), mode, StorageMode.JSON);
+            }
+            store = new SnapshotStore<>(StorageMode.JSON, jsonFile, codec, mapFactory.get(), saveInterval);
+        }
+        store.load();
+        return store;
+    }
+
+    private void load() throws IOException {
+        try {
+            if (hasData()) {
+                read();
+            } else {
+                final List<Path> imported = readAll(jsonFile, codec, map);
+                if (!imported.isEmpty()) {
+                    writeNow();
+                    for (Path file : imported) {
+                        if (!file.equals(getFile())) retire(file);
+                    }
+                    log.info("Imported {} entries from {} into {}", map.size(), imported, getFile());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to load {}", getFile(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Read the data of every backend that has files for a store into a map
+     *
+     * @param jsonFile The JSON file of the store
+     * @param codec    The codec for the entries
+     * @param map      The map to add the entries to
+     * @param <K>      The key type
+     * @param <V>      The value type
+     *
+     * @return The files that were read
+     *
+     * @throws IOException If a file could not be read
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> List<Path> readAll(final Path jsonFile, final StoreCodec<K, V> codec, final Map<K, V> map) throws IOException {
+        final List<Path> read = new ArrayList<>();
+        final Path binaryFile = fileFor(StorageMode.BINARY, jsonFile);
+        if (Files.exists(binaryFile)) {
+            readBinary(binaryFile, codec, map);
+            read.add(binaryFile);
+        }
+        final Path tableFile = fileFor(StorageMode.MAPPED, jsonFile);
+        if (Files.exists(tableFile) && codec == StoreCodec.UUID_LOCATIONS) {
+            ((Map<UUID, Location>) map).putAll(MappedLocationTable.readAll(tableFile));
+            read.add(tableFile);
+        }
+        if (Files.exists(jsonFile)) {
+            readJson(jsonFile, codec, map);
+            read.add(jsonFile);
+        }
+        final Path journalFile = Journal.fileFor(jsonFile);
+        if (Files.exists(journalFile)) {
+            new Journal<>(jsonFile, file -> {}, codec.getKeyCodec(), codec.getValueCodec(), Long.MAX_VALUE).replay(map);
+            read.add(journalFile);
+        }
+        return read;
+    }
+
+    /**
+     * Get the file a backend stores its data in
+     *
+     * @param mode     The backend
+     * @param jsonFile The JSON file of the store
+     *
+     * @return The file
+     */
+    public static Path fileFor(final StorageMode mode, final Path jsonFile) {
+        switch (mode) {
+            case BINARY:
+                return sibling(jsonFile, ".bin");
+            case MAPPED:
+                return sibling(jsonFile, ".dat");
+            default:
+                return jsonFile;
+        }
+    }
+
+    private static Path sibling(final Path jsonFile, final String extension) {
+        String name = jsonFile.getFileName().toString();
+        if (name.endsWith(".json")) name = name.substring(0, name.length() - ".json".length());
+        return jsonFile.resolveSibling(name + extension);
+    }
+
+    /**
+     * Rename a file or directory that is no longer used to {@code <name>.migrated}, so nothing is lost if a migration goes wrong
+     *
+     * @param file The file
+     *
+     * @throws IOException If the file could not be renamed
+     */
+    public static void retire(final Path file) throws IOException {
+        if (Files.exists(file)) {
+            Files.move(file, file.resolveSibling(file.getFileName() + ".migrated"), REPLACE_EXISTING);
+        }
+    }
+
+    static <K, V> void readJson(final Path file, final StoreCodec<K, V> codec, final Map<K, V> map) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, Constants.CHARSET)) {
+            codec.readJson(reader, map);
+        }
+    }
+
+    static <K, V> void writeJson(final Path file, final StoreCodec<K, V> codec, final Map<K, V> map) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, Constants.CHARSET)) {
+            codec.writeJson(writer, map);
+        }
+    }
+
+    static <K, V> void readBinary(final Path file, final StoreCodec<K, V> codec, final Map<K, V> map) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != BINARY_MAGIC) throw new IOException(file + " is not a binary store");
+            final int version = in.readInt();
+            if (version != BINARY_VERSION) throw new IOException("Unsupported version " + version + " of " + file);
+            codec.readBinary(in, map);
+        }
+    }
+
+    static <K, V> void writeBinary(final Path file, final StoreCodec<K, V> codec, final Map<K, V> map) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            codec.writeBinary(out, map);
+        }
+    }
+
+    /**
+     * Write a file next to its final location and move it into place, so a crash never leaves a half written file behind
+     */
+    static void replace(final Path file, final CoalescingWriter.Sink sink) throws IOException {
+        if (file.getParent() != null && !Files.exists(file.getParent())) {
+            Files.createDirectories(file.getParent());
+        }
+        final Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        sink.write(tempFile);
+        Files.move(tempFile, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /* ---------- Map operations ---------- */
+
+    @Nullable
+    public V get(final K key) {
+        return map.get(key);
+    }
+
+    public boolean containsKey(final K key) {
+        return map.containsKey(key);
+    }
+
+    public void put(final K key, final V value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        map.put(key, value);
+        changed(key, value);
+    }
+
+    @Nullable
+    public V remove(final K key) {
+        @Nullable final V previous = map.remove(key);
+        if (previous != null) changed(key, null);
+        return previous;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Get a read-only view of the keys
+     *
+     * @return The keys
+     */
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(map.keySet());
+    }
+
+    /**
+     * Get a read-only view of the data
+     *
+     * @return The data
+     */
+    public Map<K, V> asMap() {
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Get the data as it is now. If the store holds its data in a {@link CopyOnWriteMap} this is an immutable version that later changes
+     * don't affect, otherwise it is a read-only view.
+     *
+     * @return The data
+     */
+    @SuppressWarnings("unchecked")
+    public Map<K, V> snapshot() {
+        return map instanceof CopyOnWriteMap ? ((CopyOnWriteMap<K, V>) map).snapshot() : Collections.unmodifiableMap(map);
+    }
+
+    /* ---------- Backend ---------- */
+
+    /**
+     * Get the backend that stores the data
+     *
+     * @return The backend
+     */
+    public abstract StorageMode getMode();
+
+    /**
+     * Get the file the backend stores the data in
+     *
+     * @return The file
+     */
+    public Path getFile() {
+        return fileFor(getMode(), jsonFile);
+    }
+
+    /**
+     * Write changes that are waiting for the save interval on the calling thread
+     */
+    public abstract void flush();
+
+    abstract boolean hasData();
+
+    abstract void read() throws IOException;
+
+    abstract void writeNow() throws IOException;
+
+    abstract void changed(K key, @Nullable V value);
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "file=" + getFile() +
+                ", size=" + size() +
+                '}';
+    }
+
+    /**
+     * Rewrites the whole file after changes, in either JSON or binary form
+     */
+    private static final class SnapshotStore<K, V> extends KeyValueStore<K, V> {
+
+        private final StorageMode mode;
+        private final Path file;
+        private final CoalescingWriter writer;
+
+        SnapshotStore(final StorageMode mode, final Path jsonFile, final StoreCodec<K, V> codec, final Map<K, V> map, final long saveInterval) {
+            super(jsonFile, codec, map);
+            this.mode = mode;
+            this.file = fileFor(mode, jsonFile);
+            this.writer = new CoalescingWriter(file, saveInterval, this::write);
+        }
+
+        @Override
+        public StorageMode getMode() {
+            return mode;
+        }
+
+        @Override
+        public void flush() {
+            writer.flush();
+        }
+
+        @Override
+        boolean hasData() {
+            return Files.exists(file);
+        }
+
+        @Override
+        void read() throws IOException {
+            if (mode == StorageMode.BINARY) {
+                readBinary(file, codec, map);
+                return;
+            }
+            readJson(file, codec, map);
+            final Path journalFile = Journal.fileFor(jsonFile);
+            if (Files.exists(journalFile)) {
+                // Switched away from journal storage, fold what is left of the journal into the snapshot
+                new Journal<>(jsonFile, path -> {}, codec.getKeyCodec(), codec.getValueCodec(), Long.MAX_VALUE).replay(map);
+                writeNow();
+                Files.delete(journalFile);
+            }
+        }
+
+        @Override
+        void writeNow() throws IOException {
+            write(file);
+        }
+
+        @Override
+        void changed(final K key, @Nullable final V value) {
+            writer.markDirty();
+        }
+
+        private void write(final Path file) throws IOException {
+            if (mode == StorageMode.BINARY) {
+                replace(file, path -> writeBinary(path, codec, snapshot()));
+            } else {
+                replace(file, path -> writeJson(path, codec, snapshot()));
+            }
+        }
+    }
+
+    /**
+     * Appends every change to a journal next to a JSON snapshot
+     */
+    private static final class JournalStore<K, V> extends KeyValueStore<K, V> {
+
+        private final Journal<K, V> journal;
+
+        JournalStore(final Path jsonFile, final StoreCodec<K, V> codec, final Map<K, V> map, final long compactThreshold) {
+            super(jsonFile, codec, map);
+            this.journal = new Journal<>(jsonFile, path -> writeJson(path, codec, snapshot()),
+                    codec.getKeyCodec(), codec.getValueCodec(), compactThreshold);
+        }
+
+        @Override
+        public StorageMode getMode() {
+            return StorageMode.JOURNAL;
+        }
+
+        @Override
+        public void flush() {
+            // Records are appended as soon as the IO thread gets to them
+        }
+
+        @Override
+        boolean hasData() {
+            return Files.exists(jsonFile) || Files.exists(journal.getFile());
+        }
+
+        @Override
+        void read() throws IOException {
+            if (Files.exists(jsonFile)) readJson(jsonFile, codec, map);
+            journal.replay(map);
+        }
+
+        @Override
+        void writeNow() throws IOException {
+            replace(jsonFile, path -> writeJson(path, codec, snapshot()));
+        }
+
+        @Override
+        void changed(final K key, @Nullable final V value) {
+            if (value != null) {
+                journal.set(key, value);
+            } else {
+                journal.delete(key);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "JournalStore{" +
+                    "file=" + getFile() +
+                    ", size=" + size() +
+                    ", journal=" + journal +
+                    '}';
+        }
+    }
+
+    /**
+     * Keeps the data in a memory-mapped table that is updated in place
+     */
+    private static final class MappedStore extends KeyValueStore<UUID, Location> {
+
+        private final MappedLocationTable table;
+        private final boolean existed;
+        private final CoalescingWriter writer;
+
+        private MappedStore(final Path jsonFile, final MappedLocationTable table, final boolean existed, final long saveInterval) {
+            super(jsonFile, StoreCodec.UUID_LOCATIONS, table);
+            this.table = table;
+            this.existed = existed;
+            this.writer = new CoalescingWriter(table.getFile(), saveInterval, file -> table.force());
+        }
+
+        static MappedStore open(final Path jsonFile, final long saveInterval) throws IOException {
+            final Path file = fileFor(StorageMode.MAPPED, jsonFile);
+            final boolean existed = Files.exists(file);
+            return new MappedStore(jsonFile, MappedLocationTable.open(file), existed, saveInterval);
+        }
+
+        @Override
+        public StorageMode getMode() {
+            return StorageMode.MAPPED;
+        }
+
+        @Override
+        public void flush() {
+            writer.flush();
+        }
+
+        @Override
+        boolean hasData() {
+            return existed;
+        }
+
+        @Override
+        void read() {
+            // The table is the map
+        }
+
+        @Override
+        void writeNow() {
+            table.force();
+        }
+
+        @Override
+        void changed(final UUID key, @Nullable final Location value) {
+            writer.markDirty();
+        }
+    }
+}
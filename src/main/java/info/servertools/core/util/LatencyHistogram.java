@@ -0,0 +1,129 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations for estimating percentiles.
+ * <p>
+ * Durations are counted in microseconds, in buckets that are spaced logarithmically with {@value #SUB_BUCKETS} linear steps per power of
+ * two, so a percentile is off by at most one step, about 12%. Recording is a few atomic increments and never allocates.
+ * </p>
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a duration
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current;
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+            // Retry
+        }
+    }
+
+    private static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+    }
+
+    private static long upperBoundOf(final int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int exponent = index / SUB_BUCKETS - 1;
+        final long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << exponent) - 1;
+    }
+
+    /**
+     * Estimate a percentile
+     *
+     * @param percentile The percentile, between 0 and 100
+     *
+     * @return The estimated duration in microseconds, or 0 if nothing was recorded
+     */
+    public long getPercentile(final double percentile) {
+        final long recorded = count.get();
+        if (recorded == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(recorded * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Get the number of recorded durations
+     *
+     * @return The count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the mean of the recorded durations
+     *
+     * @return The mean in microseconds, or 0 if nothing was recorded
+     */
+    public long getMean() {
+        final long recorded = count.get();
+        return recorded == 0 ? 0 : total.get() / recorded;
+    }
+
+    /**
+     * Get the longest recorded duration
+     *
+     * @return The maximum in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" +
+                "count=" + getCount() +
+                ", mean=" + getMean() + "us" +
+                ", p50=" + getPercentile(50) + "us" +
+                ", p99=" + getPercentile(99) + "us" +
+                ", max=" + getMax() + "us" +
+                '}';
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link UUID} to {@link Location} map that lives in a memory-mapped file.
+ * <p>
+ * The file is an open-addressing hash table of fixed size records, so opening it does not parse anything and lookups and updates touch
+ * a single record in place. Each record holds the UUID as two longs, the dimension and the three coordinates. Writes go to the page
+ * cache immediately and reach the disk when the operating system flushes them or when {@link #force()} is called.
+ * </p>
+ * <p>
+ * When the table gets too full it is rebuilt with twice the capacity. The live records are first copied to a side file so an interrupted
+ * rebuild can be finished the next time the table is opened.
+ * </p>
+ * <p>
+ * All methods are synchronized. {@link #entrySet()} returns a copy and does not support modification, {@link #forEach(BiConsumer)} reads
+ * the records in place without copying them.
+ * </p>
+ */
+public final class MappedLocationTable extends AbstractMap<UUID, Location> implements Closeable {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private static final int MAGIC = 0x53544C54; // STLT
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_SIZE = 12;
+    private static final int H_TOMBSTONES = 16;
+
+    private static final int RECORD_SIZE = 48;
+    private static final int R_STATE = 0;
+    private static final int R_DIM = 4;
+    private static final int R_MSB = 8;
+    private static final int R_LSB = 16;
+    private static final int R_X = 24;
+    private static final int R_Y = 32;
+    private static final int R_Z = 40;
+
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+
+    private static final int LIVE_RECORD_SIZE = 44; // Records in the rebuild side file have no state byte or padding
+
+    private static final int MIN_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    private final Path file;
+    private final Path rebuildFile;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    private int tombstones;
+
+    private MappedLocationTable(final Path file, final FileChannel channel) {
+        this.file = file;
+        this.rebuildFile = file.resolveSibling(file.getFileName() + ".rebuild");
+        this.channel = channel;
+    }
+
+    /**
+     * Open a table, creating it if it doesn't exist
+     *
+     * @param file The table file
+     *
+     * @return The table
+     *
+     * @throws IOException If the file could not be opened or is not a valid table
+     */
+    public static MappedLocationTable open(final Path file) throws IOException {
+        Objects.requireNonNull(file, "file");
+        if (file.getParent() != null && !Files.exists(file.getParent())) {
+            Files.createDirectories(file.getParent());
+        }
+        final FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE);
+        final MappedLocationTable table = new MappedLocationTable(file, channel);
+        try {
+            if (Files.exists(table.rebuildFile)) {
+                log.warn("Finishing an interrupted rebuild of {}", file);
+                table.finishRebuild();
+            } else if (channel.size() == 0) {
+                table.map(MIN_CAPACITY);
+                table.clear();
+            } else {
+                table.mapExisting();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return table;
+    }
+
+    /**
+     * Read every entry of a table file without mapping it
+     *
+     * @param file The table file
+     *
+     * @return The entries
+     *
+     * @throws IOException If the file could not be read or is not a valid table
+     */
+    public static Map<UUID, Location> readAll(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            final int capacity = checkHeader(file, header, channel.size());
+
+            final Map<UUID, Location> map = new HashMap<>();
+            final ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 1024);
+            long position = HEADER_SIZE;
+            final long end = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            while (position < end) {
+                records.clear();
+                records.limit((int) Math.min(records.capacity(), end - position));
+                readFully(channel, records, position);
+                for (int off = 0; off < records.limit(); off += RECORD_SIZE) {
+                    if (records.get(off + R_STATE) == USED) {
+                        map.put(readKey(records, off), readLocation(records, off));
+                    }
+                }
+                position += records.limit();
+            }
+            return map;
+        }
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static int checkHeader(final Path file, final ByteBuffer header, final long fileSize) throws IOException {
+        if (header.getInt(H_MAGIC) != MAGIC) {
+            throw new IOException(file + " is not a location table");
+        }
+        if (header.getInt(H_VERSION) != VERSION) {
+            throw new IOException(file + " has unsupported version " + header.getInt(H_VERSION));
+        }
+        final int capacity = header.getInt(H_CAPACITY);
+        if (capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1 || fileSize < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+            throw new IOException(file + " is truncated or has an invalid capacity of " + capacity);
+        }
+        return capacity;
+    }
+
+    private void mapExisting() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0);
+        map(checkHeader(file, header, channel.size()));
+        this.size = buffer.getInt(H_SIZE);
+        this.tombstones = buffer.getInt(H_TOMBSTONES);
+    }
+
+    private void map(final int capacity) throws IOException {
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        this.capacity = capacity;
+        buffer.putInt(H_MAGIC, MAGIC);
+        buffer.putInt(H_VERSION, VERSION);
+        buffer.putInt(H_CAPACITY, capacity);
+    }
+
+    private static int offset(final int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private int slot(final long msb, final long lsb) {
+        long h = msb ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & (capacity - 1);
+    }
+
+    private int find(final long msb, final long lsb) {
+        for (int slot = slot(msb, lsb); ; slot = (slot + 1) & (capacity - 1)) {
+            final int off = offset(slot);
+            final byte state = buffer.get(off + R_STATE);
+            if (state == EMPTY) {
+                return -1;
+            } else if (state == USED && buffer.getLong(off + R_MSB) == msb && buffer.getLong(off + R_LSB) == lsb) {
+                return slot;
+            }
+        }
+    }
+
+    private static UUID readKey(final ByteBuffer buffer, final int off) {
+        return new UUID(buffer.getLong(off + R_MSB), buffer.getLong(off + R_LSB));
+    }
+
+    private static Location readLocation(final ByteBuffer buffer, final int off) {
+        return new Location(buffer.getInt(off + R_DIM), buffer.getDouble(off + R_X), buffer.getDouble(off + R_Y), buffer.getDouble(off + R_Z));
+    }
+
+    private void writeLocation(final int off, final Location location) {
+        buffer.putInt(off + R_DIM, location.getDim());
+        buffer.putDouble(off + R_X, location.getX());
+        buffer.putDouble(off + R_Y, location.getY());
+        buffer.putDouble(off + R_Z, location.getZ());
+    }
+
+    private void writeCounts() {
+        buffer.putInt(H_SIZE, size);
+        buffer.putInt(H_TOMBSTONES, tombstones);
+    }
+
+    @Nullable
+    @Override
+    public synchronized Location get(final Object key) {
+        if (!(key instanceof UUID)) return null;
+        final UUID uuid = (UUID) key;
+        final int slot = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return slot < 0 ? null : readLocation(buffer, offset(slot));
+    }
+
+    @Override
+    public synchronized boolean containsKey(final Object key) {
+        if (!(key instanceof UUID)) return false;
+        final UUID uuid = (UUID) key;
+        return find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) >= 0;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Location put(final UUID key, final Location value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        final long msb = key.getMostSignificantBits();
+        final long lsb = key.getLeastSignificantBits();
+
+        int free = -1;
+        for (int slot = slot(msb, lsb); ; slot = (slot + 1) & (capacity - 1)) {
+            final int off = offset(slot);
+            final byte state = buffer.get(off + R_STATE);
+            if (state == EMPTY) {
+                if (free < 0) free = slot;
+                break;
+            } else if (state == DELETED) {
+                if (free < 0) free = slot;
+            } else if (buffer.getLong(off + R_MSB) == msb && buffer.getLong(off + R_LSB) == lsb) {
+                final Location old = readLocation(buffer, off);
+                writeLocation(off, value);
+                return old;
+            }
+        }
+
+        final int off = offset(free);
+        if (buffer.get(off + R_STATE) == DELETED) tombstones--;
+        buffer.putLong(off + R_MSB, msb);
+        buffer.putLong(off + R_LSB, lsb);
+        writeLocation(off, value);
+        buffer.put(off + R_STATE, USED); // Mark used last so a torn write never exposes a half written record
+        size++;
+        writeCounts();
+
+        if (size + tombstones > capacity * MAX_LOAD) {
+            try {
+                rebuild(size * 2 > capacity * MAX_LOAD ? capacity * 2 : capacity);
+            } catch (IOException e) {
+                log.error("Failed to rebuild {}", file, e);
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Location remove(final Object key) {
+        if (!(key instanceof UUID)) return null;
+        final UUID uuid = (UUID) key;
+        final int slot = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (slot < 0) return null;
+        final int off = offset(slot);
+        final Location old = readLocation(buffer, off);
+        buffer.put(off + R_STATE, DELETED);
+        size--;
+        tombstones++;
+        writeCounts();
+        return old;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        final byte[] zeros = new byte[RECORD_SIZE * 256];
+        buffer.position(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+        }
+        buffer.clear();
+        size = 0;
+        tombstones = 0;
+        writeCounts();
+    }
+
+    @Override
+    public synchronized Set<Entry<UUID, Location>> entrySet() {
+        final Map<UUID, Location> copy = new HashMap<>(size);
+        for (int slot = 0; slot < capacity; slot++) {
+            final int off = offset(slot);
+            if (buffer.get(off + R_STATE) == USED) {
+                copy.put(readKey(buffer, off), readLocation(buffer, off));
+            }
+        }
+        return Collections.unmodifiableMap(copy).entrySet();
+    }
+
+    @Override
+    public synchronized void forEach(final BiConsumer<? super UUID, ? super Location> action) {
+        Objects.requireNonNull(action, "action");
+        for (int slot = 0; slot < capacity; slot++) {
+            final int off = offset(slot);
+            if (buffer.get(off + R_STATE) == USED) {
+                action.accept(readKey(buffer, off), readLocation(buffer, off));
+            }
+        }
+    }
+
+    private void rebuild(final int newCapacity) throws IOException {
+        final ByteBuffer live = ByteBuffer.allocate(size * LIVE_RECORD_SIZE);
+        for (int slot = 0; slot < capacity; slot++) {
+            final int off = offset(slot);
+            if (buffer.get(off + R_STATE) == USED) {
+                live.putLong(buffer.getLong(off + R_MSB));
+                live.putLong(buffer.getLong(off + R_LSB));
+                live.putInt(buffer.getInt(off + R_DIM));
+                live.putDouble(buffer.getDouble(off + R_X));
+                live.putDouble(buffer.getDouble(off + R_Y));
+                live.putDouble(buffer.getDouble(off + R_Z));
+            }
+        }
+        live.flip();
+
+        // Keep a copy of the live records until the rebuild is complete
+        try (FileChannel out = FileChannel.open(rebuildFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            while (live.hasRemaining()) {
+                out.write(live);
+            }
+            out.force(true);
+        }
+        live.rewind();
+
+        refill(live, newCapacity);
+        Files.delete(rebuildFile);
+        log.debug("Rebuilt {} with capacity {} for {} entries", file, newCapacity, size);
+    }
+
+    private void finishRebuild() throws IOException {
+        final ByteBuffer live = ByteBuffer.allocate((int) Files.size(rebuildFile));
+        try (FileChannel in = FileChannel.open(rebuildFile, READ)) {
+            readFully(in, live, 0);
+        }
+        int newCapacity = MIN_CAPACITY;
+        while (live.remaining() / LIVE_RECORD_SIZE > newCapacity * MAX_LOAD / 2) {
+            newCapacity *= 2;
+        }
+        refill(live, newCapacity);
+        Files.delete(rebuildFile);
+    }
+
+    private void refill(final ByteBuffer live, final int newCapacity) throws IOException {
+        if (newCapacity != capacity) {
+            map(newCapacity);
+        }
+        clear();
+        while (live.remaining() >= LIVE_RECORD_SIZE) {
+            final long msb = live.getLong();
+            final long lsb = live.getLong();
+            final int dim = live.getInt();
+            final Location location = new Location(dim, live.getDouble(), live.getDouble(), live.getDouble());
+            int slot = slot(msb, lsb);
+            while (buffer.get(offset(slot) + R_STATE) != EMPTY) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            final int off = offset(slot);
+            buffer.putLong(off + R_MSB, msb);
+            buffer.putLong(off + R_LSB, lsb);
+            writeLocation(off, location);
+            buffer.put(off + R_STATE, USED);
+            size++;
+        }
+        writeCounts();
+        buffer.force();
+    }
+
+    /**
+     * Force all changes to be written to the disk
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    /**
+     * Get the table file
+     *
+     * @return The file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Get the number of records the table can hold before it has to be rebuilt
+     *
+     * @return The capacity
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * An immutable hash array mapped trie.
+ * <p>
+ * {@link #plus(Object, Object)} and {@link #minus(Object)} return a new version of the map that shares every node off the path to the
+ * changed key with the old one, so a change copies at most seven small arrays no matter how large the map is. Versions are never
+ * modified, which makes holding on to one a free, consistent snapshot that any thread may read. Each node keeps its entries in front of
+ * its child nodes in one array, indexed by two 32 bit bitmaps of the five hash bits used at its depth.
+ * </p>
+ * <p>
+ * Keys and values may not be {@code null}. The map does not support the mutating methods of {@link java.util.Map}.
+ * </p>
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int MAX_DEPTH = 8; // Seven levels of bitmap nodes and one of collision nodes
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    @Nullable private final Node root;
+    private final int size;
+
+    @Nullable private transient Set<Entry<K, V>> entrySet;
+
+    private PersistentMap(@Nullable final Node root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Get the empty map
+     *
+     * @param <K> The key type
+     * @param <V> The value type
+     *
+     * @return The empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Get a version of this map that maps a key to a value
+     *
+     * @param key   The key
+     * @param value The value
+     *
+     * @return The new version, or this map if the key was already mapped to the same value
+     */
+    public PersistentMap<K, V> plus(final K key, final V value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        if (root == null) {
+            return new PersistentMap<>(BitmapNode.of(key, value, hash(key)), 1);
+        }
+        final Change change = new Change();
+        final Node newRoot = root.put(key, value, hash(key), 0, change);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, size + change.sizeDelta);
+    }
+
+    /**
+     * Get a version of this map without a key
+     *
+     * @param key The key
+     *
+     * @return The new version, or this map if it didn't contain the key
+     */
+    public PersistentMap<K, V> minus(final Object key) {
+        if (root == null || key == null) return this;
+        final Change change = new Change();
+        @Nullable final Node newRoot = root.remove(key, hash(key), 0, change);
+        if (newRoot == root) return this;
+        return newRoot == null ? empty() : new PersistentMap<>(newRoot, size + change.sizeDelta);
+    }
+
+    @Override
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public V get(final Object key) {
+        return root == null || key == null ? null : (V) root.get(key, hash(key), 0);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator<>(root);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private static int hash(final Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int fragment(final int hash, final int shift) {
+        return (hash >>> shift) & MASK;
+    }
+
+    /**
+     * What an update did, filled in on the way down the trie
+     */
+    private static final class Change {
+        int sizeDelta;
+    }
+
+    private abstract static class Node {
+
+        @Nullable
+        abstract Object get(Object key, int hash, int shift);
+
+        abstract Node put(Object key, Object value, int hash, int shift, Change change);
+
+        @Nullable
+        abstract Node remove(Object key, int hash, int shift, Change change);
+
+        abstract int entryCount();
+
+        abstract Object keyAt(int i);
+
+        abstract Object valueAt(int i);
+
+        abstract int nodeCount();
+
+        abstract Node nodeAt(int i);
+
+        /**
+         * Whether the node holds a single entry and nothing else, so its parent can hold the entry instead
+         */
+        final boolean isSingleEntry() {
+            return entryCount() == 1 && nodeCount() == 0;
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+
+        private final int dataMap;
+        private final int nodeMap;
+        private final Object[] array; // Key and value pairs, then child nodes
+
+        BitmapNode(final int dataMap, final int nodeMap, final Object[] array) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.array = array;
+        }
+
+        static BitmapNode of(final Object key, final Object value, final int hash) {
+            return new BitmapNode(1 << fragment(hash, 0), 0, new Object[] { key, value });
+        }
+
+        private int dataIndex(final int bit) {
+            return 2 * Integer.bitCount(dataMap & (bit - 1));
+        }
+
+        private int nodeIndex(final int bit) {
+            return 2 * Integer.bitCount(dataMap) + Integer.bitCount(nodeMap & (bit - 1));
+        }
+
+        @Override
+        @Nullable
+        Object get(final Object key, final int hash, final int shift) {
+            final int bit = 1 << fragment(hash, shift);
+            if ((dataMap & bit) != 0) {
+                final int i = dataIndex(bit);
+                return key.equals(array[i]) ? array[i + 1] : null;
+            }
+            if ((nodeMap & bit) != 0) {
+                return ((Node) array[nodeIndex(bit)]).get(key, hash, shift + BITS);
+            }
+            return null;
+        }
+
+        @Override
+        Node put(final Object key, final Object value, final int hash, final int shift, final Change change) {
+            final int bit = 1 << fragment(hash, shift);
+            if ((dataMap & bit) != 0) {
+                final int i = dataIndex(bit);
+                final Object existing = array[i];
+                if (key.equals(existing)) {
+                    if (array[i + 1] == value) return this;
+                    final Object[] copy = array.clone();
+                    copy[i + 1] = value;
+                    return new BitmapNode(dataMap, nodeMap, copy);
+                }
+                // Two keys share the fragment at this depth, push both down into a new child
+                change.sizeDelta = 1;
+                final Node child = merge(existing, array[i + 1], hash(existing), key, value, hash, shift + BITS);
+                final int to = nodeIndex(bit) - 2;
+                final Object[] copy = new Object[array.length - 1];
+                System.arraycopy(array, 0, copy, 0, i);
+                System.arraycopy(array, i + 2, copy, i, to - i);
+                copy[to] = child;
+                System.arraycopy(array, to + 2, copy, to + 1, array.length - to - 2);
+                return new BitmapNode(dataMap ^ bit, nodeMap | bit, copy);
+            }
+            if ((nodeMap & bit) != 0) {
+                final int i = nodeIndex(bit);
+                final Node child = (Node) array[i];
+                final Node newChild = child.put(key, value, hash, shift + BITS, change);
+                if (newChild == child) return this;
+                final Object[] copy = array.clone();
+                copy[i] = newChild;
+                return new BitmapNode(dataMap, nodeMap, copy);
+            }
+            change.sizeDelta = 1;
+            final int i = dataIndex(bit);
+            final Object[] copy = new Object[array.length + 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            copy[i] = key;
+            copy[i + 1] = value;
+            System.arraycopy(array, i, copy, i + 2, array.length - i);
+            return new BitmapNode(dataMap | bit, nodeMap, copy);
+        }
+
+        @Override
+        @Nullable
+        Node remove(final Object key, final int hash, final int shift, final Change change) {
+            final int bit = 1 << fragment(hash, shift);
+            if ((dataMap & bit) != 0) {
+                final int i = dataIndex(bit);
+                if (!key.equals(array[i])) return this;
+                change.sizeDelta = -1;
+                if (array.length == 2) return null;
+                final Object[] copy = new Object[array.length - 2];
+                System.arraycopy(array, 0, copy, 0, i);
+                System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+                return new BitmapNode(dataMap ^ bit, nodeMap, copy);
+            }
+            if ((nodeMap & bit) != 0) {
+                final int i = nodeIndex(bit);
+                final Node child = (Node) array[i];
+                @Nullable final Node newChild = child.remove(key, hash, shift + BITS, change);
+                if (newChild == child) return this;
+                if (newChild == null) {
+                    if (array.length == 1) return null;
+                    final Object[] copy = new Object[array.length - 1];
+                    System.arraycopy(array, 0, copy, 0, i);
+                    System.arraycopy(array, i + 1, copy, i, array.length - i - 1);
+                    return new BitmapNode(dataMap, nodeMap ^ bit, copy);
+                }
+                if (newChild.isSingleEntry()) {
+                    // Pull the last entry of the child up into this node
+                    final int to = dataIndex(bit);
+                    final Object[] copy = new Object[array.length + 1];
+                    System.arraycopy(array, 0, copy, 0, to);
+                    copy[to] = newChild.keyAt(0);
+                    copy[to + 1] = newChild.valueAt(0);
+                    System.arraycopy(array, to, copy, to + 2, i - to);
+                    System.arraycopy(array, i + 1, copy, i + 2, array.length - i - 1);
+                    return new BitmapNode(dataMap | bit, nodeMap ^ bit, copy);
+                }
+                final Object[] copy = array.clone();
+                copy[i] = newChild;
+                return new BitmapNode(dataMap, nodeMap, copy);
+            }
+            return this;
+        }
+
+        private static Node merge(final Object key0, final Object value0, final int hash0,
+                                  final Object key1, final Object value1, final int hash1, final int shift) {
+            if (shift >= Integer.SIZE) {
+                return new CollisionNode(new Object[] { key0, value0, key1, value1 });
+            }
+            final int fragment0 = fragment(hash0, shift);
+            final int fragment1 = fragment(hash1, shift);
+            if (fragment0 == fragment1) {
+                return new BitmapNode(0, 1 << fragment0, new Object[] { merge(key0, value0, hash0, key1, value1, hash1, shift + BITS) });
+            }
+            final Object[] array = fragment0 < fragment1
+                    ? new Object[] { key0, value0, key1, value1 }
+                    : new Object[] { key1, value1, key0, value0 };
+            return new BitmapNode((1 << fragment0) | (1 << fragment1), 0, array);
+        }
+
+        @Override
+        int entryCount() {
+            return Integer.bitCount(dataMap);
+        }
+
+        @Override
+        Object keyAt(final int i) {
+            return array[2 * i];
+        }
+
+        @Override
+        Object valueAt(final int i) {
+            return array[2 * i + 1];
+        }
+
+        @Override
+        int nodeCount() {
+            return Integer.bitCount(nodeMap);
+        }
+
+        @Override
+        Node nodeAt(final int i) {
+            return (Node) array[2 * Integer.bitCount(dataMap) + i];
+        }
+    }
+
+    /**
+     * Holds the keys whose hashes are identical, below the last level of bitmap nodes
+     */
+    private static final class CollisionNode extends Node {
+
+        private final Object[] array; // Key and value pairs
+
+        CollisionNode(final Object[] array) {
+            this.array = array;
+        }
+
+        private int indexOf(final Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        @Nullable
+        Object get(final Object key, final int hash, final int shift) {
+            final int i = indexOf(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        @Override
+        Node put(final Object key, final Object value, final int hash, final int shift, final Change change) {
+            final int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) return this;
+                final Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(copy);
+            }
+            change.sizeDelta = 1;
+            final Object[] copy = Arrays.copyOf(array, array.length + 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            return new CollisionNode(copy);
+        }
+
+        @Override
+        @Nullable
+        Node remove(final Object key, final int hash, final int shift, final Change change) {
+            final int i = indexOf(key);
+            if (i < 0) return this;
+            change.sizeDelta = -1;
+            if (array.length == 2) return null;
+            final Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new CollisionNode(copy);
+        }
+
+        @Override
+        int entryCount() {
+            return array.length / 2;
+        }
+
+        @Override
+        Object keyAt(final int i) {
+            return array[2 * i];
+        }
+
+        @Override
+        Object valueAt(final int i) {
+            return array[2 * i + 1];
+        }
+
+        @Override
+        int nodeCount() {
+            return 0;
+        }
+
+        @Override
+        Node nodeAt(final int i) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * Walks the trie depth first, keeping its path on a fixed size stack
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+
+        private final Node[] nodes = new Node[MAX_DEPTH];
+        private final int[] entryPositions = new int[MAX_DEPTH];
+        private final int[] nodePositions = new int[MAX_DEPTH];
+        private int depth;
+
+        @Nullable private Entry<K, V> next;
+
+        EntryIterator(@Nullable final Node root) {
+            if (root == null) {
+                depth = -1;
+            } else {
+                nodes[0] = root;
+                advance();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            while (depth >= 0) {
+                final Node node = nodes[depth];
+                if (entryPositions[depth] < node.entryCount()) {
+                    final int i = entryPositions[depth]++;
+                    next = new SimpleImmutableEntry<>((K) node.keyAt(i), (V) node.valueAt(i));
+                    return;
+                }
+                if (nodePositions[depth] < node.nodeCount()) {
+                    final Node child = node.nodeAt(nodePositions[depth]++);
+                    depth++;
+                    nodes[depth] = child;
+                    entryPositions[depth] = 0;
+                    nodePositions[depth] = 0;
+                } else {
+                    nodes[depth--] = null;
+                }
+            }
+            next = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            final Entry<K, V> entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
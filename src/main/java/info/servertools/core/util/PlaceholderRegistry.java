@@ -0,0 +1,136 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.util.Objects.requireNonNull;
+
+import net.minecraft.command.ICommandSender;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+/**
+ * Named values that can be filled into a {@link ChatTemplate}.
+ * <p>
+ * Each placeholder has a provider and a refresh interval. A placeholder with a refresh interval is the same for everybody, so its value is
+ * cached and only computed again once the interval has passed. A placeholder without one, such as the player's name, is computed for each
+ * player. Either way, values are only computed when a template actually contains the placeholder.
+ * </p>
+ * <p>
+ * Placeholders may be registered from any thread, but values are only to be resolved on the server thread.
+ * </p>
+ */
+public final class PlaceholderRegistry {
+
+    private final Map<String, Placeholder> placeholders = new ConcurrentHashMap<>();
+
+    /**
+     * Register a placeholder, replacing any placeholder with the same name
+     *
+     * @param name            The name of the placeholder, as written between the {@code $} signs
+     * @param refreshInterval How long a value is cached for, or {@code 0} to compute it for every player
+     * @param unit            The unit of {@code refreshInterval}
+     * @param provider        Computes the value
+     */
+    public void register(final String name, final long refreshInterval, final TimeUnit unit, final Provider provider) {
+        requireNonNull(name, "name");
+        requireNonNull(unit, "unit");
+        requireNonNull(provider, "provider");
+        placeholders.put(name, new Placeholder(provider, unit.toNanos(Math.max(0, refreshInterval))));
+    }
+
+    /**
+     * Get the names of every registered placeholder
+     *
+     * @return The names
+     */
+    public Set<String> getNames() {
+        return placeholders.keySet();
+    }
+
+    /**
+     * Get a resolver for rendering templates to a command sender. Each placeholder is computed at most once per resolver.
+     *
+     * @param sender The command sender the templates are rendered for
+     *
+     * @return The resolver, returning {@code null} for names that aren't registered
+     */
+    public Function<String, String> resolver(final ICommandSender sender) {
+        requireNonNull(sender, "sender");
+        final Map<String, String> resolved = new HashMap<>(4);
+        return name -> {
+            @Nullable String value = resolved.get(name);
+            if (value == null) {
+                @Nullable final Placeholder placeholder = placeholders.get(name);
+                if (placeholder == null) return null;
+                value = placeholder.get(sender);
+                if (value != null) resolved.put(name, value);
+            }
+            return value;
+        };
+    }
+
+    /**
+     * Computes the value of a placeholder
+     */
+    @FunctionalInterface
+    public interface Provider {
+
+        /**
+         * Compute the value
+         *
+         * @param sender The command sender the template is rendered for. For placeholders that are cached, whoever happened to need the
+         *               value first
+         *
+         * @return The value, or {@code null} to leave the placeholder as it was written
+         */
+        @Nullable
+        String get(ICommandSender sender);
+    }
+
+    private static final class Placeholder {
+
+        private final Provider provider;
+        private final long refreshNanos;
+        @Nullable private String value;
+        private long expiry;
+
+        Placeholder(final Provider provider, final long refreshNanos) {
+            this.provider = provider;
+            this.refreshNanos = refreshNanos;
+        }
+
+        @Nullable
+        String get(final ICommandSender sender) {
+            if (refreshNanos == 0) return provider.get(sender);
+            final long now = System.nanoTime();
+            if (value == null || now - expiry >= 0) {
+                value = provider.get(sender);
+                expiry = now + refreshNanos;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import info.servertools.core.Constants;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Stores one small JSON file per player and only keeps the players that are likely to need their data in memory.
+ * <p>
+ * Files live in {@code <directory>/<first two characters of the UUID>/<UUID>.json}, so no directory ends up with hundreds of thousands of
+ * entries. Nothing is read at startup. A player's data is {@linkplain #prefetch(UUID) prefetched} on the {@linkplain FileIO IO thread}
+ * when they log in and stays resident while they are online. After they log out it moves into a bounded least recently used cache. Data
+ * for a player that is not resident is read on the calling thread when it is asked for.
+ * </p>
+ * <p>
+ * Changes are written through a {@link CoalescingWriter}, and only the files of players that actually changed are rewritten. Players
+ * with unwritten changes are never evicted.
+ * </p>
+ * <p>
+ * A file that can't be read is moved aside to {@code <UUID>.json.corrupt} rather than treated as empty, and the player's data can't be
+ * {@linkplain #put(UUID, Object) changed} while that file exists, so nothing overwrites what may still be recovered from it. Once it has
+ * been fixed and moved back, or deleted, the player's data is read again the next time it isn't resident.
+ * </p>
+ *
+ * @param <V> The type of data stored per player
+ */
+public final class PlayerDataStore<V> {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final Path directory;
+    private final JsonCodec<V> codec;
+    private final int cacheSize;
+    private final CoalescingWriter writer;
+
+    // All guarded by this
+    private final LinkedHashMap<UUID, Resident<V>> residents = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<UUID> online = new HashSet<>();
+    private final Set<UUID> dirty = new HashSet<>();
+    private final Set<UUID> unreadable = new HashSet<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Construct a new PlayerDataStore
+     *
+     * @param directory    The directory the player files are stored in
+     * @param codec        The codec for the data stored per player
+     * @param cacheSize    The number of players that are not online to keep in memory
+     * @param saveInterval The number of milliseconds to wait after a change before writing
+     */
+    public PlayerDataStore(final Path directory, final JsonCodec<V> codec, final int cacheSize, final long saveInterval) {
+        this.directory = Objects.requireNonNull(directory, "directory");
+        this.codec = Objects.requireNonNull(codec, "codec");
+        this.cacheSize = Math.max(0, cacheSize);
+        this.writer = new CoalescingWriter(directory, saveInterval, file -> writeDirty());
+    }
+
+    /**
+     * Get the file a player's data is stored in
+     *
+     * @param uuid The player's UUID
+     *
+     * @return The file
+     */
+    public Path fileFor(final UUID uuid) {
+        final String name = uuid.toString();
+        return directory.resolve(name.substring(0, 2)).resolve(name + ".json");
+    }
+
+    /**
+     * Get a player's data, reading it on the calling thread if it isn't resident
+     *
+     * @param uuid The player's UUID
+     *
+     * @return The data, if the player has any
+     */
+    public Optional<V> get(final UUID uuid) {
+        Objects.requireNonNull(uuid, "uuid");
+        synchronized (this) {
+            @Nullable final Resident<V> resident = residents.get(uuid);
+            if (resident != null) {
+                hits.incrementAndGet();
+                return Optional.ofNullable(resident.value);
+            }
+        }
+        misses.incrementAndGet();
+        final Resident<V> loaded = new Resident<>(read(uuid));
+        synchronized (this) {
+            @Nullable final Resident<V> raced = residents.putIfAbsent(uuid, loaded);
+            evict();
+            return Optional.ofNullable(raced != null ? raced.value : loaded.value);
+        }
+    }
+
+    /**
+     * Get a player's data only if it is already in memory. This never touches the disk.
+     *
+     * @param uuid The player's UUID
+     *
+     * @return The data, if it is resident and the player has any
+     */
+    public synchronized Optional<V> getIfResident(final UUID uuid) {
+        @Nullable final Resident<V> resident = residents.get(uuid);
+        return resident == null ? Optional.empty() : Optional.ofNullable(resident.value);
+    }
+
+    /**
+     * Check if a player's data is in memory, including players who have no data
+     *
+     * @param uuid The player's UUID
+     *
+     * @return {@code true} if the data is resident
+     */
+    public synchronized boolean isResident(final UUID uuid) {
+        return residents.containsKey(uuid);
+    }
+
+    /**
+     * Check if a player's file could not be read the last time it was read. Their data can't be changed until the file is fixed.
+     *
+     * @param uuid The player's UUID
+     *
+     * @return {@code true} if the file was moved aside as corrupt
+     */
+    public synchronized boolean isUnreadable(final UUID uuid) {
+        return unreadable.contains(uuid);
+    }
+
+    /**
+     * Set a player's data
+     *
+     * @param uuid  The player's UUID
+     * @param value The data, or {@code null} to delete it
+     *
+     * @throws IllegalStateException If the player's file {@linkplain #isUnreadable(UUID) could not be read}
+     */
+    public void put(final UUID uuid, @Nullable final V value) {
+        Objects.requireNonNull(uuid, "uuid");
+        synchronized (this) {
+            if (unreadable.contains(uuid)) {
+                throw new IllegalStateException("The data of " + uuid + " could not be read, fix or delete " + corruptFileFor(uuid));
+            }
+            residents.put(uuid, new Resident<>(value));
+            dirty.add(uuid);
+        }
+        writer.markDirty();
+    }
+
+    /**
+     * Start reading a player's data on the IO thread and keep it resident until {@linkplain #release(UUID) released}
+     *
+     * @param uuid The player's UUID
+     */
+    public void prefetch(final UUID uuid) {
+        Objects.requireNonNull(uuid, "uuid");
+        synchronized (this) {
+            online.add(uuid);
+            if (residents.containsKey(uuid)) return;
+        }
+        // Reading only depends on the latest file, so it can be a snapshot and is never dropped
+        FileIO.submitSnapshot("prefetch", fileFor(uuid), FileIO.Priority.NORMAL, () -> {
+            final Resident<V> loaded = new Resident<>(read(uuid));
+            synchronized (this) {
+                residents.putIfAbsent(uuid, loaded);
+            }
+            prefetches.incrementAndGet();
+        });
+    }
+
+    /**
+     * Allow a player's data to be evicted, usually because they logged out
+     *
+     * @param uuid The player's UUID
+     */
+    public synchronized void release(final UUID uuid) {
+        online.remove(uuid);
+        residents.get(uuid); // Most recently used
+        evict();
+    }
+
+    private void evict() {
+        int excess = residents.size() - online.size() - cacheSize;
+        final Iterator<Map.Entry<UUID, Resident<V>>> iterator = residents.entrySet().iterator();
+        while (excess > 0 && iterator.hasNext()) {
+            final UUID uuid = iterator.next().getKey();
+            if (!online.contains(uuid) && !dirty.contains(uuid)) {
+                iterator.remove();
+                evictions.incrementAndGet();
+                excess--;
+            }
+        }
+    }
+
+    @Nullable
+    private V read(final UUID uuid) {
+        final Path file = fileFor(uuid);
+        final Path corruptFile = corruptFileFor(uuid);
+        if (Files.exists(corruptFile)) {
+            log.warn("{} has not been fixed yet, not loading the data of {}", corruptFile, uuid);
+            markUnreadable(uuid, true);
+            return null;
+        }
+        if (!Files.exists(file)) {
+            markUnreadable(uuid, false);
+            return null;
+        }
+        try (JsonReader in = new JsonReader(Files.newBufferedReader(file, Constants.CHARSET))) {
+            in.setLenient(true);
+            final V value = codec.read(in);
+            markUnreadable(uuid, false);
+            return value;
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            log.error("Failed to read {}, moving it to {} and refusing changes until it is fixed", file, corruptFile, e);
+            try {
+                Files.move(file, corruptFile);
+            } catch (IOException moveFailure) {
+                log.error("Failed to move {} aside", file, moveFailure);
+            }
+            markUnreadable(uuid, true);
+            return null;
+        }
+    }
+
+    private synchronized void markUnreadable(final UUID uuid, final boolean corrupt) {
+        if (corrupt) {
+            unreadable.add(uuid);
+        } else {
+            unreadable.remove(uuid);
+        }
+    }
+
+    private Path corruptFileFor(final UUID uuid) {
+        final Path file = fileFor(uuid);
+        return file.resolveSibling(file.getFileName() + ".corrupt");
+    }
+
+    @Nullable
+    private static <V> V read(final Path file, final JsonCodec<V> codec) {
+        if (!Files.exists(file)) return null;
+        try (JsonReader in = new JsonReader(Files.newBufferedReader(file, Constants.CHARSET))) {
+            in.setLenient(true);
+            return codec.read(in);
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            log.error("Failed to read {}", file, e);
+            return null;
+        }
+    }
+
+    private void writeDirty() throws IOException {
+        final Map<UUID, Resident<V>> batch = new HashMap<>();
+        synchronized (this) {
+            for (UUID uuid : dirty) {
+                batch.put(uuid, residents.get(uuid));
+            }
+        }
+
+        @Nullable IOException failure = null;
+        for (Map.Entry<UUID, Resident<V>> entry : batch.entrySet()) {
+            try {
+                write(entry.getKey(), entry.getValue().value);
+                synchronized (this) {
+                    // Stay dirty if it was changed again while it was being written
+                    if (residents.get(entry.getKey()) == entry.getValue()) {
+                        dirty.remove(entry.getKey());
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Failed to write {}", fileFor(entry.getKey()), e);
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void write(final UUID uuid, @Nullable final V value) throws IOException {
+        final Path file = fileFor(uuid);
+        if (value == null) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        if (!Files.exists(file.getParent())) {
+            Files.createDirectories(file.getParent());
+        }
+        final Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (JsonWriter out = new JsonWriter(Files.newBufferedWriter(tempFile, Constants.CHARSET))) {
+            codec.write(out, value);
+        }
+        Files.move(tempFile, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /**
+     * Write every player's data on the calling thread, replacing whatever is stored. This is meant for one-time imports.
+     *
+     * @param values The data for each player
+     *
+     * @throws IOException If a file could not be written
+     */
+    public void writeAll(final Map<UUID, V> values) throws IOException {
+        for (Map.Entry<UUID, V> entry : values.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Read every player's data in a directory on the calling thread. This is meant for one-time exports.
+     *
+     * @param directory The directory the player files are stored in
+     * @param codec     The codec for the data stored per player
+     * @param <V>       The type of data stored per player
+     *
+     * @return The data for each player
+     *
+     * @throws IOException If the directory could not be read
+     */
+    public static <V> Map<UUID, V> readAll(final Path directory, final JsonCodec<V> codec) throws IOException {
+        final Map<UUID, V> values = new HashMap<>();
+        walk(directory, (uuid, file) -> {
+            @Nullable final V value = read(file, codec);
+            if (value != null) values.put(uuid, value);
+        });
+        return values;
+    }
+
+    /**
+     * Visit every player's data one player at a time on the calling thread. Resident data is used as is and the rest is read from the
+     * disk without being kept, so this never holds more than one player's data that wasn't already in memory.
+     *
+     * @param action The action to run for each player that has data
+     *
+     * @throws IOException If the directory could not be read
+     */
+    public void forEach(final BiConsumer<UUID, V> action) throws IOException {
+        final Map<UUID, Resident<V>> resident;
+        synchronized (this) {
+            resident = new HashMap<>(residents);
+        }
+        walk(directory, (uuid, file) -> {
+            if (resident.containsKey(uuid)) return;
+            @Nullable final V value = read(file, codec);
+            if (value != null) action.accept(uuid, value);
+        });
+        // Includes players whose data hasn't been written yet
+        for (Map.Entry<UUID, Resident<V>> entry : resident.entrySet()) {
+            if (entry.getValue().value != null) action.accept(entry.getKey(), entry.getValue().value);
+        }
+    }
+
+    private static void walk(final Path directory, final BiConsumer<UUID, Path> action) throws IOException {
+        if (!Files.isDirectory(directory)) return;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path shard : shards) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(shard, "*.json")) {
+                    for (Path file : files) {
+                        final String name = file.getFileName().toString();
+                        final UUID uuid;
+                        try {
+                            uuid = UUID.fromString(name.substring(0, name.length() - ".json".length()));
+                        } catch (IllegalArgumentException e) {
+                            log.warn("Ignoring unexpected file {}", file);
+                            continue;
+                        }
+                        action.accept(uuid, file);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the directory the player files are stored in
+     *
+     * @return The directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the number of players whose data is in memory
+     *
+     * @return The number of resident players
+     */
+    public synchronized int getResidentCount() {
+        return residents.size();
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerDataStore{" +
+                "directory=" + directory +
+                ", resident=" + getResidentCount() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", prefetches=" + prefetches +
+                ", evictions=" + evictions +
+                '}';
+    }
+
+    private static final class Resident<V> {
+
+        @Nullable
+        final V value;
+
+        Resident(@Nullable final V value) {
+            this.value = value;
+        }
+    }
+}
@@ -25,14 +25,14 @@ import net.minecraft.network.play.server.S07PacketRespawn;
 import net.minecraft.network.play.server.S1DPacketEntityEffect;
 import net.minecraft.potion.PotionEffect;
 import net.minecraft.server.management.ServerConfigurationManager;
+import net.minecraft.util.BlockPos;
 import net.minecraft.util.MathHelper;
 import net.minecraft.world.WorldProvider;
 import net.minecraft.world.WorldServer;
 
-import net.minecraftforge.common.DimensionManager;
 import net.minecraftforge.fml.common.FMLCommonHandler;
 
-import javax.annotation.Nullable;
+import java.util.Optional;
 
 /**
  * A variety of utility functions for interacting with player entities
@@ -57,6 +57,31 @@ public final class PlayerUtils {
         player.setPositionAndUpdate(location.getX(), location.getY(), location.getZ());
     }
 
+    /**
+     * Teleport a player to a target location, or to the nearest place around it where they can {@linkplain SafeLanding stand safely}
+     *
+     * @param player   The player to teleport
+     * @param location The target location
+     * @param safe     Whether to look for a safe place to land instead of teleporting to exactly the target location
+     *
+     * @return {@code false} if there was no safe place to land, in which case the player wasn't moved
+     */
+    public static boolean teleportPlayer(final EntityPlayerMP player, final Location location, final boolean safe) {
+        requireNonNull(player, "player");
+        requireNonNull(location, "location");
+
+        if (!safe) {
+            teleportPlayer(player, location);
+            return true;
+        }
+        final BlockPos target = new BlockPos(location.getX(), location.getY(), location.getZ());
+        final Optional<BlockPos> landing = SafeLanding.find(ServerUtils.getOrLoadWorld(location.getDim()), target);
+        if (!landing.isPresent()) return false;
+        final BlockPos pos = landing.get();
+        teleportPlayer(player, pos.equals(target) ? location : new Location(location.getDim(), pos.getX() + 0.5, pos.getY(), pos.getZ() + 0.5));
+        return true;
+    }
+
     /**
      * Transfer a player to another dimension
      *
@@ -66,21 +91,17 @@ public final class PlayerUtils {
     public static void transferToDimension(final EntityPlayerMP player, final int dimId) {
         requireNonNull(player, "player");
 
+        long phaseStart = System.nanoTime();
         final ServerConfigurationManager configurationManager = player.mcServer.getConfigurationManager();
         final WorldServer oldWorld = player.getServerForPlayer();
         final int oldDimId = oldWorld.provider.getDimensionId();
-        @Nullable WorldServer newWorld = DimensionManager.getWorld(dimId);
-        if (newWorld == null) {
-            DimensionManager.initDimension(dimId);
-            newWorld = DimensionManager.getWorld(dimId);
-            if (newWorld == null) {
-                throw new IllegalArgumentException("Dimension " + dimId + " could not be found or loaded");
-            }
-        }
+        final WorldServer newWorld = ServerUtils.getOrLoadWorld(dimId);
+        phaseStart = TransferPhase.FIND_WORLD.record(phaseStart);
 
         player.dimension = dimId;
         player.playerNetServerHandler.sendPacket(new S07PacketRespawn(player.dimension, newWorld.getDifficulty(), newWorld.getWorldInfo().getTerrainType(), player.theItemInWorldManager.getGameType()));
         oldWorld.removePlayerEntityDangerously(player);
+        phaseStart = TransferPhase.LEAVE.record(phaseStart);
         player.isDead = false;
         WorldProvider oldProvider = oldWorld.provider;
         WorldProvider newProvider = newWorld.provider;
@@ -100,10 +121,12 @@ public final class PlayerUtils {
         }
 
         oldWorld.theProfiler.endSection();
+        phaseStart = TransferPhase.SPAWN.record(phaseStart);
         player.setWorld(newWorld);
         configurationManager.preparePlayer(player, oldWorld);
         player.playerNetServerHandler.setPlayerLocation(player.posX, player.posY, player.posZ, player.rotationYaw, player.rotationPitch);
         player.theItemInWorldManager.setWorld(newWorld);
+        phaseStart = TransferPhase.PREPARE.record(phaseStart);
         configurationManager.updateTimeAndWeatherForPlayer(player, newWorld);
         configurationManager.syncPlayerInventory(player);
 
@@ -112,6 +135,50 @@ public final class PlayerUtils {
         }
 
         FMLCommonHandler.instance().firePlayerChangedDimensionEvent(player, oldDimId, dimId);
+        TransferPhase.SYNC.record(phaseStart);
+    }
+
+    /**
+     * The steps of {@linkplain #transferToDimension(EntityPlayerMP, int) moving a player to another dimension}, each timing every transfer
+     */
+    public enum TransferPhase {
+        /**
+         * Looking up the new world, and loading it if it isn't loaded
+         */
+        FIND_WORLD,
+        /**
+         * Respawning the client and removing the player from the old world
+         */
+        LEAVE,
+        /**
+         * Placing the player in the new world
+         */
+        SPAWN,
+        /**
+         * Attaching the player to the new world's chunk tracking, which queues its chunks to be sent
+         */
+        PREPARE,
+        /**
+         * Sending time, weather, inventory and potion effects, and firing the dimension change event
+         */
+        SYNC;
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * Get how long this phase took
+         *
+         * @return The histogram
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        long record(final long start) {
+            final long now = System.nanoTime();
+            latency.record(now - start);
+            return now;
+        }
     }
 
     private PlayerUtils() {}
@@ -0,0 +1,230 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+import javax.annotation.Nullable;
+
+/**
+ * A trie of names that completes prefixes, ranking the names that are used most first.
+ * <p>
+ * Names are stored in lower case, one node per character, and every node keeps its children sorted by character. Completing a prefix walks
+ * down to the node of the prefix and visits the names below it, so it costs the length of the prefix plus the number of matches, no
+ * matter how many other names the index holds. Only the best matches up to the limit are kept in a heap while visiting, so a short prefix
+ * that matches thousands of names doesn't sort them all. Adding and removing a name only touches the nodes on its path.
+ * </p>
+ * <p>
+ * All methods are synchronized.
+ * </p>
+ */
+public final class PrefixIndex {
+
+    private static final Comparator<Node> RANKING = (a, b) -> {
+        final int byUses = Long.compare(b.uses, a.uses);
+        return byUses != 0 ? byUses : a.name.compareTo(b.name);
+    };
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * Add a name to the index
+     *
+     * @param name The name
+     *
+     * @return {@code true} if the name was added, {@code false} if it was already in the index
+     */
+    public synchronized boolean add(final String name) {
+        final String key = Objects.requireNonNull(name, "name").toLowerCase();
+        Node node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.childOrCreate(key.charAt(i));
+        }
+        if (node.name != null) return false;
+        node.name = key;
+        node.uses = 0;
+        size++;
+        return true;
+    }
+
+    /**
+     * Remove a name from the index
+     *
+     * @param name The name
+     *
+     * @return {@code true} if the name was removed, {@code false} if it wasn't in the index
+     */
+    public synchronized boolean remove(final String name) {
+        final String key = Objects.requireNonNull(name, "name").toLowerCase();
+        final Node[] path = new Node[key.length() + 1];
+        path[0] = root;
+        for (int i = 0; i < key.length(); i++) {
+            @Nullable final Node child = path[i].child(key.charAt(i));
+            if (child == null) return false;
+            path[i + 1] = child;
+        }
+        final Node node = path[key.length()];
+        if (node.name == null) return false;
+        node.name = null;
+        node.uses = 0;
+        size--;
+        // Drop the nodes that no longer lead to a name
+        for (int i = key.length(); i > 0 && path[i].name == null && path[i].childCount == 0; i--) {
+            path[i - 1].removeChild(key.charAt(i - 1));
+        }
+        return true;
+    }
+
+    /**
+     * Record that a name was used, which ranks it higher in completions
+     *
+     * @param name The name
+     */
+    public synchronized void recordUse(final String name) {
+        @Nullable final Node node = find(Objects.requireNonNull(name, "name").toLowerCase());
+        if (node != null && node.name != null) node.uses++;
+    }
+
+    /**
+     * Get the number of times a name was used since it was added
+     *
+     * @param name The name
+     *
+     * @return The number of uses
+     */
+    public synchronized long getUses(final String name) {
+        @Nullable final Node node = find(Objects.requireNonNull(name, "name").toLowerCase());
+        return node != null && node.name != null ? node.uses : 0;
+    }
+
+    /**
+     * Get the names that start with a prefix, the most used first and then in alphabetical order
+     *
+     * @param prefix The prefix, in any case
+     * @param limit  The maximum number of names to return
+     *
+     * @return The names
+     */
+    public synchronized List<String> complete(final String prefix, final int limit) {
+        @Nullable final Node start = find(Objects.requireNonNull(prefix, "prefix").toLowerCase());
+        if (start == null || limit <= 0) return Collections.emptyList();
+        // The worst of the best matches so far is at the head, ready to be replaced
+        final PriorityQueue<Node> best = new PriorityQueue<>(Math.min(limit, size) + 1, RANKING.reversed());
+        collect(start, best, limit);
+        final Node[] ranked = best.toArray(new Node[best.size()]);
+        Arrays.sort(ranked, RANKING);
+        final List<String> names = new ArrayList<>(ranked.length);
+        for (Node node : ranked) {
+            names.add(node.name);
+        }
+        return names;
+    }
+
+    /**
+     * Get the number of names in the index
+     *
+     * @return The number of names
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Nullable
+    private Node find(final String key) {
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        return node;
+    }
+
+    private static void collect(final Node node, final PriorityQueue<Node> best, final int limit) {
+        if (node.name != null) {
+            if (best.size() < limit) {
+                best.add(node);
+            } else if (RANKING.compare(node, best.peek()) < 0) {
+                best.poll();
+                best.add(node);
+            }
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            collect(node.children[i], best, limit);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PrefixIndex{" +
+                "size=" + size +
+                '}';
+    }
+
+    private static final class Node {
+
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        @Nullable String name; // Set if a name ends at this node
+        long uses;
+
+        char[] keys = NO_KEYS; // Sorted
+        Node[] children = NO_CHILDREN;
+        int childCount;
+
+        @Nullable
+        Node child(final char c) {
+            final int i = Arrays.binarySearch(keys, 0, childCount, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        Node childOrCreate(final char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i >= 0) return children[i];
+            i = -i - 1;
+            if (childCount == keys.length) {
+                final int capacity = Math.max(2, childCount * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, childCount - i);
+            System.arraycopy(children, i, children, i + 1, childCount - i);
+            final Node child = new Node();
+            keys[i] = c;
+            children[i] = child;
+            childCount++;
+            return child;
+        }
+
+        void removeChild(final char c) {
+            final int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i < 0) return;
+            System.arraycopy(keys, i + 1, keys, i, childCount - i - 1);
+            System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+            childCount--;
+            children[childCount] = null;
+        }
+    }
+}
@@ -43,8 +43,9 @@ public class STConfig<T> {
     private HoconConfigurationLoader loader;
     private CommentedConfigurationNode root = SimpleCommentedConfigurationNode.root();
     private ObjectMapper<T>.BoundInstance configMapper;
-    private T configBase;
+    private volatile T configBase;
     private final Path file;
+    private final Class<T> clazz;
 
     /**
      * Construct a new STConfig instance
@@ -54,6 +55,7 @@ public class STConfig<T> {
      */
     public STConfig(final Path file, final Class<T> clazz) {
         this.file = file;
+        this.clazz = clazz;
         try {
             if (!Files.exists(file.getParent())) {
                 Files.createDirectories(file.getParent());
@@ -100,6 +102,29 @@ public class STConfig<T> {
         }
     }
 
+    /**
+     * Reload the configuration whenever the file is changed on disk. The new values replace the whole configuration instance at once on the
+     * server thread, so code that holds on to the old instance keeps seeing consistent values.
+     *
+     * @throws IOException If the file can't be watched
+     * @see FileWatcher
+     */
+    public void watch() throws IOException {
+        FileWatcher.watch(file, this::parse, this::swap);
+    }
+
+    private Parsed parse(final Path file) throws IOException, ObjectMappingException {
+        final CommentedConfigurationNode root = this.loader.load();
+        final ObjectMapper<T>.BoundInstance mapper = ObjectMapper.forClass(clazz).bindToNew();
+        return new Parsed(root, mapper, mapper.populate(root));
+    }
+
+    private void swap(final Parsed parsed) {
+        this.root = parsed.root;
+        this.configMapper = parsed.mapper;
+        this.configBase = parsed.config;
+    }
+
     /**
      * Get the instance of the configuration Type
      *
@@ -117,4 +142,17 @@ public class STConfig<T> {
     public Path getFile() {
         return this.file;
     }
+
+    private final class Parsed {
+
+        final CommentedConfigurationNode root;
+        final ObjectMapper<T>.BoundInstance mapper;
+        final T config;
+
+        Parsed(final CommentedConfigurationNode root, final ObjectMapper<T>.BoundInstance mapper, final T config) {
+            this.root = root;
+            this.mapper = mapper;
+            this.config = config;
+        }
+    }
 }
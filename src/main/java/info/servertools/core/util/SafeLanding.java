@@ -0,0 +1,323 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import static java.util.Objects.requireNonNull;
+
+import net.minecraft.block.material.Material;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.BlockPos;
+import net.minecraft.world.IWorldAccess;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.gen.ChunkProviderServer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Finds the nearest place around a teleport destination where a player can stand without suffocating, drowning or burning.
+ * <p>
+ * The search reads blocks straight from the loaded chunks, nearest columns first and nearest heights first within each column. In worlds
+ * with a sky, a destination with nothing safe around it falls back to the surface above it, taken from the chunk's heightmap. Results are
+ * cached per destination and dropped as soon as a block changes in any column the search looked at, so repeated teleports to the same
+ * place only search again after something there changed.
+ * </p>
+ * <p>
+ * Only to be used from the server thread.
+ * </p>
+ */
+public final class SafeLanding {
+
+    private static final int HORIZONTAL_RADIUS = 2;
+    private static final int VERTICAL_RANGE = 8;
+    private static final int MAX_CACHED = 4096; // Per world
+
+    private static final Map<World, Cache> caches = new WeakHashMap<>(); // Unloaded worlds drop their cache with them
+
+    private static long hits;
+    private static long misses;
+    private static long invalidations;
+
+    /**
+     * Find the nearest safe place to stand around a destination
+     *
+     * @param world  The world of the destination
+     * @param target The block the player's feet would be in
+     *
+     * @return The block the player's feet should be in, or {@link Optional#empty()} if there is nowhere safe nearby
+     */
+    public static Optional<BlockPos> find(final WorldServer world, final BlockPos target) {
+        requireNonNull(world, "world");
+        requireNonNull(target, "target");
+        @Nullable Cache cache = caches.get(world);
+        if (cache == null) {
+            cache = new Cache();
+            caches.put(world, cache);
+            world.addWorldAccess(cache);
+        }
+        final long key = target.toLong();
+        @Nullable final Result cached = cache.results.get(key);
+        if (cached != null) {
+            hits++;
+            return cached.landing;
+        }
+        misses++;
+        final Search search = new Search(world, target);
+        final Optional<BlockPos> landing = search.run();
+        if (search.complete) {
+            cache.put(key, new Result(landing, search.columns, search.columnCount));
+        }
+        return landing;
+    }
+
+    /**
+     * Get the number of searches that were answered from the cache
+     *
+     * @return The number of searches
+     */
+    public static long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get the number of searches that had to read the world
+     *
+     * @return The number of searches
+     */
+    public static long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get the number of cached results that were dropped because a block changed near them
+     *
+     * @return The number of results
+     */
+    public static long getInvalidationCount() {
+        return invalidations;
+    }
+
+    /**
+     * Get the number of results that are cached across all worlds
+     *
+     * @return The number of results
+     */
+    public static int getCachedCount() {
+        int count = 0;
+        for (Cache cache : caches.values()) {
+            count += cache.results.size();
+        }
+        return count;
+    }
+
+    private static long columnKey(final int x, final int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private static boolean canStandOn(final Material material) {
+        return material.blocksMovement() && material != Material.cactus;
+    }
+
+    private static boolean canStandIn(final Material material) {
+        return !material.blocksMovement() && !material.isLiquid() && material != Material.fire && material != Material.portal;
+    }
+
+    private static final class Search {
+
+        private final WorldServer world;
+        private final ChunkProviderServer provider;
+        private final BlockPos target;
+        private final int maxY;
+
+        final long[] columns = new long[(2 * HORIZONTAL_RADIUS + 1) * (2 * HORIZONTAL_RADIUS + 1)];
+        int columnCount;
+        boolean complete = true; // Whether every chunk that was needed was loaded and fully generated
+
+        @Nullable private Chunk chunk;
+
+        Search(final WorldServer world, final BlockPos target) {
+            this.world = world;
+            this.provider = world.theChunkProviderServer;
+            this.target = target;
+            this.maxY = world.getActualHeight();
+        }
+
+        Optional<BlockPos> run() {
+            final int targetX = target.getX(), targetY = target.getY(), targetZ = target.getZ();
+            for (int r = 0; r <= HORIZONTAL_RADIUS; r++) {
+                @Nullable BlockPos best = null;
+                int bestDistance = Integer.MAX_VALUE;
+                for (int dx = -r; dx <= r; dx++) {
+                    for (int dz = -r; dz <= r; dz++) {
+                        if (Math.max(Math.abs(dx), Math.abs(dz)) != r) continue; // Inner rings were searched already
+                        final int x = targetX + dx, z = targetZ + dz;
+                        if (!loadColumn(x, z)) continue;
+                        for (int dy = 0; dy <= VERTICAL_RANGE; dy++) {
+                            final int distance = dx * dx + dz * dz + dy * dy;
+                            if (distance >= bestDistance) break;
+                            final int y = isSafe(x, targetY + dy, z) ? targetY + dy : dy > 0 && isSafe(x, targetY - dy, z) ? targetY - dy : -1;
+                            if (y != -1) {
+                                best = new BlockPos(x, y, z);
+                                bestDistance = distance;
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (best != null) return Optional.of(best);
+            }
+            if (!world.provider.getHasNoSky() && loadColumn(targetX, targetZ)) {
+                final int surface = chunk.getHeightValue(targetX & 15, targetZ & 15);
+                if (isSafe(targetX, surface, targetZ)) return Optional.of(new BlockPos(targetX, surface, targetZ));
+            }
+            return Optional.empty();
+        }
+
+        private boolean loadColumn(final int x, final int z) {
+            final int chunkX = x >> 4, chunkZ = z >> 4;
+            if (chunk == null || chunk.xPosition != chunkX || chunk.zPosition != chunkZ) {
+                if (!provider.chunkExists(chunkX, chunkZ)) {
+                    complete = false;
+                    chunk = null;
+                    return false;
+                }
+                chunk = provider.provideChunk(chunkX, chunkZ);
+                // Blocks placed while a chunk is being populated don't notify the cache, so only fully generated chunks can be cached
+                if (!chunk.isTerrainPopulated()) complete = false;
+            }
+            final long column = columnKey(x, z);
+            for (int i = 0; i < columnCount; i++) {
+                if (columns[i] == column) return true;
+            }
+            columns[columnCount++] = column;
+            return true;
+        }
+
+        private boolean isSafe(final int x, final int y, final int z) {
+            if (y < 1 || y + 1 >= maxY) return false;
+            final Chunk chunk = this.chunk;
+            return canStandOn(chunk.getBlock(x, y - 1, z).getMaterial())
+                    && canStandIn(chunk.getBlock(x, y, z).getMaterial())
+                    && canStandIn(chunk.getBlock(x, y + 1, z).getMaterial());
+        }
+    }
+
+    private static final class Result {
+
+        final Optional<BlockPos> landing;
+        final long[] columns;
+
+        Result(final Optional<BlockPos> landing, final long[] columns, final int columnCount) {
+            this.landing = landing;
+            this.columns = Arrays.copyOf(columns, columnCount);
+        }
+    }
+
+    /**
+     * The cached results of one world. Registered with the world to hear about every block change in it.
+     */
+    private static final class Cache implements IWorldAccess {
+
+        final Map<Long, Result> results = new LinkedHashMap<Long, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Result> eldest) {
+                if (size() <= MAX_CACHED) return false;
+                unlink(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+        private final Map<Long, Set<Long>> dependents = new HashMap<>(); // Column -> destinations whose search read it
+
+        void put(final long key, final Result result) {
+            results.put(key, result);
+            for (long column : result.columns) {
+                dependents.computeIfAbsent(column, k -> new HashSet<>()).add(key);
+            }
+        }
+
+        private void unlink(final long key, final Result result) {
+            for (long column : result.columns) {
+                @Nullable final Set<Long> keys = dependents.get(column);
+                if (keys != null && keys.remove(key) && keys.isEmpty()) dependents.remove(column);
+            }
+        }
+
+        @Override
+        public void markBlockForUpdate(final BlockPos pos) {
+            if (dependents.isEmpty()) return;
+            @Nullable final Set<Long> keys = dependents.remove(columnKey(pos.getX(), pos.getZ()));
+            if (keys == null) return;
+            for (Long key : keys) {
+                @Nullable final Result result = results.remove(key);
+                if (result != null) {
+                    unlink(key, result);
+                    invalidations++;
+                }
+            }
+        }
+
+        @Override
+        public void notifyLightSet(final BlockPos pos) {}
+
+        @Override
+        public void markBlockRangeForRenderUpdate(final int x1, final int y1, final int z1, final int x2, final int y2, final int z2) {}
+
+        @Override
+        public void playSound(final String soundName, final double x, final double y, final double z, final float volume, final float pitch) {}
+
+        @Override
+        public void playSoundToNearExcept(final EntityPlayer except, final String soundName, final double x, final double y, final double z,
+                final float volume, final float pitch) {}
+
+        @Override
+        public void spawnParticle(final int particleID, final boolean ignoreRange, final double xCoord, final double yCoord, final double zCoord,
+                final double xOffset, final double yOffset, final double zOffset, final int... parameters) {}
+
+        @Override
+        public void onEntityAdded(final Entity entity) {}
+
+        @Override
+        public void onEntityRemoved(final Entity entity) {}
+
+        @Override
+        public void playRecord(final String recordName, final BlockPos pos) {}
+
+        @Override
+        public void broadcastSound(final int soundID, final BlockPos pos, final int data) {}
+
+        @Override
+        public void playAuxSFX(final EntityPlayer player, final int sfxType, final BlockPos pos, final int data) {}
+
+        @Override
+        public void sendBlockBreakProgress(final int breakerId, final BlockPos pos, final int progress) {}
+    }
+
+    private SafeLanding() {}
+}
@@ -22,6 +22,7 @@ import net.minecraft.entity.player.EntityPlayer;
 import net.minecraft.entity.player.EntityPlayerMP;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.MathHelper;
+import net.minecraft.world.WorldServer;
 
 import net.minecraftforge.common.DimensionManager;
 
@@ -202,6 +203,27 @@ public final class ServerUtils {
         return !server.isSinglePlayer();
     }
 
+    /**
+     * Get the world of a dimension, loading it if it isn't loaded
+     *
+     * @param dimId The dimension Id
+     *
+     * @return The world
+     *
+     * @throws IllegalArgumentException If the dimension doesn't exist
+     */
+    public static WorldServer getOrLoadWorld(final int dimId) {
+        @Nullable WorldServer world = DimensionManager.getWorld(dimId);
+        if (world == null) {
+            DimensionManager.initDimension(dimId);
+            world = DimensionManager.getWorld(dimId);
+            if (world == null) {
+                throw new IllegalArgumentException("Dimension " + dimId + " could not be found or loaded");
+            }
+        }
+        return world;
+    }
+
     public static double getWorldTickTime(final int dimId) {
         @Nullable long[] times = server.worldTickTimes.get(dimId);
         if (times == null) return -1;
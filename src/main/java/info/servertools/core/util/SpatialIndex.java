@@ -0,0 +1,298 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Finds the keys whose {@linkplain Location locations} are close to a point or inside a box.
+ * <p>
+ * Every dimension has its own uniform grid of square columns, {@link #CELL_SIZE} blocks wide, and each key is filed in the column its
+ * location falls in. A nearest query searches rings of columns outwards from the point until no unsearched column can hold anything closer
+ * than what it has found. A box query only looks in the columns the box overlaps. When the ring or box would cover more columns than are
+ * in use, the columns in use are searched directly instead, so keys that are far apart never make a query walk empty space.
+ * </p>
+ * <p>
+ * All methods are synchronized.
+ * </p>
+ *
+ * @param <K> The key type
+ */
+public final class SpatialIndex<K> {
+
+    /**
+     * The width of a grid column in blocks
+     */
+    public static final int CELL_SIZE = 64;
+
+    private final Map<K, Location> locations = new HashMap<>();
+    private final Map<Integer, Grid<K>> grids = new HashMap<>();
+
+    /**
+     * Set the location of a key, moving it if it already had one
+     *
+     * @param key      The key
+     * @param location The location
+     */
+    public synchronized void put(final K key, final Location location) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(location, "location");
+        @Nullable final Location previous = locations.put(key, location);
+        if (previous != null) unfile(key, previous);
+        Grid<K> grid = grids.get(location.getDim());
+        if (grid == null) {
+            grid = new Grid<>();
+            grids.put(location.getDim(), grid);
+        }
+        grid.add(key, location);
+    }
+
+    /**
+     * Remove a key
+     *
+     * @param key The key
+     *
+     * @return The location the key had, or {@code null} if it wasn't in the index
+     */
+    @Nullable
+    public synchronized Location remove(final K key) {
+        @Nullable final Location previous = locations.remove(key);
+        if (previous != null) unfile(key, previous);
+        return previous;
+    }
+
+    private void unfile(final K key, final Location location) {
+        final Grid<K> grid = grids.get(location.getDim());
+        grid.remove(key, location);
+        if (grid.cells.isEmpty()) grids.remove(location.getDim());
+    }
+
+    /**
+     * Get the location of a key
+     *
+     * @param key The key
+     *
+     * @return The location, or {@code null} if the key isn't in the index
+     */
+    @Nullable
+    public synchronized Location get(final K key) {
+        return locations.get(key);
+    }
+
+    /**
+     * Get the number of keys in the index
+     *
+     * @return The number of keys
+     */
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    /**
+     * Get the keys closest to a point, closest first
+     *
+     * @param dim   The dimension to search
+     * @param x     The X coordinate of the point
+     * @param y     The Y coordinate of the point
+     * @param z     The Z coordinate of the point
+     * @param count The maximum number of keys to return
+     *
+     * @return The keys
+     */
+    public synchronized List<K> nearest(final int dim, final double x, final double y, final double z, final int count) {
+        @Nullable final Grid<K> grid = grids.get(dim);
+        if (grid == null || count <= 0) return Collections.emptyList();
+
+        // The farthest of the keys found so far is at the head, so it is the one replaced by a closer key
+        final PriorityQueue<Candidate<K>> found = new PriorityQueue<>(count + 1, Comparator.comparingDouble((Candidate<K> c) -> c.distanceSq).reversed());
+        final int cx = cell(x);
+        final int cz = cell(z);
+        final int maxRing = Math.max(Math.max(cx - grid.minX, grid.maxX - cx), Math.max(cz - grid.minZ, grid.maxZ - cz));
+        long visited = 0;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            final long ringCells = ring == 0 ? 1 : 8L * ring;
+            if (visited + ringCells > grid.cells.size()) {
+                // Walking the rings would visit more columns than are in use, look at every column instead
+                found.clear();
+                for (Set<K> keys : grid.cells.values()) {
+                    offerAll(found, keys, x, y, z, count);
+                }
+                break;
+            }
+            visited += ringCells;
+            for (int i = -ring; i <= ring; i++) {
+                offerCell(found, grid, cx + i, cz - ring, x, y, z, count);
+                if (ring > 0) offerCell(found, grid, cx + i, cz + ring, x, y, z, count);
+            }
+            for (int i = -ring + 1; i <= ring - 1; i++) {
+                offerCell(found, grid, cx - ring, cz + i, x, y, z, count);
+                offerCell(found, grid, cx + ring, cz + i, x, y, z, count);
+            }
+            // Every column outside this ring is at least this far from the point
+            final double reach = (double) ring * CELL_SIZE;
+            if (found.size() == count && found.peek().distanceSq <= reach * reach) break;
+        }
+
+        final List<Candidate<K>> sorted = new ArrayList<>(found);
+        sorted.sort(Comparator.comparingDouble(c -> c.distanceSq));
+        final List<K> keys = new ArrayList<>(sorted.size());
+        for (Candidate<K> candidate : sorted) {
+            keys.add(candidate.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Get the keys inside a box. The bounds are inclusive and may be given in any order.
+     *
+     * @param dim The dimension to search
+     * @param x1  The X coordinate of one corner
+     * @param y1  The Y coordinate of one corner
+     * @param z1  The Z coordinate of one corner
+     * @param x2  The X coordinate of the opposite corner
+     * @param y2  The Y coordinate of the opposite corner
+     * @param z2  The Z coordinate of the opposite corner
+     *
+     * @return The keys, in no particular order
+     */
+    public synchronized List<K> within(final int dim, final double x1, final double y1, final double z1,
+                                       final double x2, final double y2, final double z2) {
+        @Nullable final Grid<K> grid = grids.get(dim);
+        if (grid == null) return Collections.emptyList();
+        final double minX = Math.min(x1, x2), maxX = Math.max(x1, x2);
+        final double minY = Math.min(y1, y2), maxY = Math.max(y1, y2);
+        final double minZ = Math.min(z1, z2), maxZ = Math.max(z1, z2);
+        final int fromX = Math.max(cell(minX), grid.minX), toX = Math.min(cell(maxX), grid.maxX);
+        final int fromZ = Math.max(cell(minZ), grid.minZ), toZ = Math.min(cell(maxZ), grid.maxZ);
+        final List<K> keys = new ArrayList<>();
+        if (fromX > toX || fromZ > toZ) return keys;
+
+        final List<Set<K>> cells = new ArrayList<>();
+        if ((long) (toX - fromX + 1) * (toZ - fromZ + 1) > grid.cells.size()) {
+            for (Map.Entry<Long, Set<K>> entry : grid.cells.entrySet()) {
+                final int cellX = (int) (entry.getKey() >> 32);
+                final int cellZ = (int) (long) entry.getKey();
+                if (cellX >= fromX && cellX <= toX && cellZ >= fromZ && cellZ <= toZ) cells.add(entry.getValue());
+            }
+        } else {
+            for (int cellX = fromX; cellX <= toX; cellX++) {
+                for (int cellZ = fromZ; cellZ <= toZ; cellZ++) {
+                    @Nullable final Set<K> cell = grid.cells.get(cellKey(cellX, cellZ));
+                    if (cell != null) cells.add(cell);
+                }
+            }
+        }
+        for (Set<K> cell : cells) {
+            for (K key : cell) {
+                final Location location = locations.get(key);
+                if (location.getX() >= minX && location.getX() <= maxX
+                        && location.getY() >= minY && location.getY() <= maxY
+                        && location.getZ() >= minZ && location.getZ() <= maxZ) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private void offerCell(final PriorityQueue<Candidate<K>> found, final Grid<K> grid, final int cellX, final int cellZ,
+                           final double x, final double y, final double z, final int count) {
+        @Nullable final Set<K> keys = grid.cells.get(cellKey(cellX, cellZ));
+        if (keys != null) offerAll(found, keys, x, y, z, count);
+    }
+
+    private void offerAll(final PriorityQueue<Candidate<K>> found, final Set<K> keys,
+                          final double x, final double y, final double z, final int count) {
+        for (K key : keys) {
+            final Location location = locations.get(key);
+            final double dx = location.getX() - x, dy = location.getY() - y, dz = location.getZ() - z;
+            final double distanceSq = dx * dx + dy * dy + dz * dz;
+            if (found.size() < count) {
+                found.add(new Candidate<>(key, distanceSq));
+            } else if (distanceSq < found.peek().distanceSq) {
+                found.poll();
+                found.add(new Candidate<>(key, distanceSq));
+            }
+        }
+    }
+
+    private static int cell(final double coordinate) {
+        return (int) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static long cellKey(final int cellX, final int cellZ) {
+        return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SpatialIndex{" +
+                "size=" + locations.size() +
+                ", dimensions=" + grids.size() +
+                '}';
+    }
+
+    private static final class Candidate<K> {
+
+        final K key;
+        final double distanceSq;
+
+        Candidate(final K key, final double distanceSq) {
+            this.key = key;
+            this.distanceSq = distanceSq;
+        }
+    }
+
+    /**
+     * The columns of one dimension. The bounds only ever grow, which keeps them cheap and still limits how far a query searches.
+     */
+    private static final class Grid<K> {
+
+        final Map<Long, Set<K>> cells = new HashMap<>();
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+
+        void add(final K key, final Location location) {
+            final int cellX = cell(location.getX());
+            final int cellZ = cell(location.getZ());
+            cells.computeIfAbsent(cellKey(cellX, cellZ), k -> new HashSet<>()).add(key);
+            minX = Math.min(minX, cellX);
+            maxX = Math.max(maxX, cellX);
+            minZ = Math.min(minZ, cellZ);
+            maxZ = Math.max(maxZ, cellZ);
+        }
+
+        void remove(final K key, final Location location) {
+            final long cellKey = cellKey(cell(location.getX()), cell(location.getZ()));
+            @Nullable final Set<K> keys = cells.get(cellKey);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) cells.remove(cellKey);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+/**
+ * The ways a feature can persist its data
+ */
+public enum StorageMode {
+
+    /**
+     * A JSON file that is rewritten after changes
+     */
+    JSON,
+
+    /**
+     * A compact binary file that is rewritten after changes
+     */
+    BINARY,
+
+    /**
+     * A JSON snapshot plus an append-only {@linkplain Journal journal} of changes that is compacted into the snapshot in the background
+     */
+    JOURNAL,
+
+    /**
+     * A {@linkplain MappedLocationTable memory-mapped table} of fixed size records that is read and updated in place. Only available for
+     * data that maps {@linkplain java.util.UUID UUIDs} to {@linkplain Location locations}
+     */
+    MAPPED,
+
+    /**
+     * One small JSON file per player, managed by a {@link PlayerDataStore}. Only the players that are online or recently logged out are
+     * kept in memory
+     */
+    PER_PLAYER
+}
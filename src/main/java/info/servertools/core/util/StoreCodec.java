@@ -0,0 +1,263 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+/**
+ * Describes how the entries of a {@link KeyValueStore} are encoded in each of its file formats.
+ * <p>
+ * The JSON form is read and written with Gson's streaming API, so large files are neither built up through reflection nor held in memory
+ * as a tree. The output is compact, but the same as Gson would produce apart from whitespace.
+ * </p>
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public final class StoreCodec<K, V> {
+
+    /**
+     * {@link UUID}s mapped to {@link Location}s, stored as a JSON object
+     */
+    public static final StoreCodec<UUID, Location> UUID_LOCATIONS =
+            map(StoreCodec::parseUUID, JsonCodec.LOCATION_CODEC, BinaryCodec.UUID_CODEC, BinaryCodec.LOCATION_CODEC);
+
+    /**
+     * Names mapped to {@link Location}s, stored as a JSON object
+     */
+    public static final StoreCodec<String, Location> STRING_LOCATIONS =
+            map(Function.identity(), JsonCodec.LOCATION_CODEC, BinaryCodec.STRING_CODEC, BinaryCodec.LOCATION_CODEC);
+
+    /**
+     * A set of {@link UUID}s, stored as a JSON array. Every key maps to {@link Boolean#TRUE}
+     */
+    public static final StoreCodec<UUID, Boolean> UUID_SET = set(StoreCodec::parseUUID, BinaryCodec.UUID_CODEC);
+
+    /**
+     * {@link UUID}s mapped to times in milliseconds since the epoch, stored as a JSON object
+     */
+    public static final StoreCodec<UUID, Long> UUID_TIMES =
+            map(StoreCodec::parseUUID, JsonCodec.LONG_CODEC, BinaryCodec.UUID_CODEC, BinaryCodec.LONG_CODEC);
+
+    private final Function<String, K> keyParser;
+    @Nullable private final JsonCodec<V> valueJsonCodec; // Null for sets
+    private final BinaryCodec<K> keyCodec;
+    private final BinaryCodec<V> valueCodec;
+
+    private StoreCodec(final Function<String, K> keyParser, @Nullable final JsonCodec<V> valueJsonCodec,
+                       final BinaryCodec<K> keyCodec, final BinaryCodec<V> valueCodec) {
+        this.keyParser = Objects.requireNonNull(keyParser, "keyParser");
+        this.valueJsonCodec = valueJsonCodec;
+        this.keyCodec = Objects.requireNonNull(keyCodec, "keyCodec");
+        this.valueCodec = Objects.requireNonNull(valueCodec, "valueCodec");
+    }
+
+    /**
+     * Create a codec for a map that is stored as a JSON object
+     *
+     * @param keyParser      Parses a key from its {@linkplain String#valueOf(Object) string form}
+     * @param valueJsonCodec The JSON codec for values
+     * @param keyCodec       The binary codec for keys
+     * @param valueCodec     The binary codec for values
+     * @param <K>            The key type
+     * @param <V>            The value type
+     *
+     * @return The codec
+     */
+    public static <K, V> StoreCodec<K, V> map(final Function<String, K> keyParser, final JsonCodec<V> valueJsonCodec,
+                                              final BinaryCodec<K> keyCodec, final BinaryCodec<V> valueCodec) {
+        return new StoreCodec<>(keyParser, Objects.requireNonNull(valueJsonCodec, "valueJsonCodec"), keyCodec, valueCodec);
+    }
+
+    /**
+     * Create a codec for a set that is stored as a JSON array of strings. Every key maps to {@link Boolean#TRUE}
+     *
+     * @param keyParser Parses an element from its {@linkplain String#valueOf(Object) string form}
+     * @param keyCodec  The binary codec for elements
+     * @param <K>       The element type
+     *
+     * @return The codec
+     */
+    public static <K> StoreCodec<K, Boolean> set(final Function<String, K> keyParser, final BinaryCodec<K> keyCodec) {
+        return new StoreCodec<>(keyParser, null, keyCodec, BinaryCodec.PRESENT_CODEC);
+    }
+
+    /**
+     * Get the binary codec for keys
+     *
+     * @return The codec
+     */
+    public BinaryCodec<K> getKeyCodec() {
+        return keyCodec;
+    }
+
+    /**
+     * Get the binary codec for values
+     *
+     * @return The codec
+     */
+    public BinaryCodec<V> getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * Read the JSON form into a map. An empty document is treated as an empty map.
+     *
+     * @param reader The reader to read from
+     * @param map    The map to add the entries to
+     *
+     * @throws IOException If an error occurred while reading, or the JSON was malformed
+     */
+    @SuppressWarnings("unchecked")
+    public void readJson(final Reader reader, final Map<K, V> map) throws IOException {
+        final JsonReader in = new JsonReader(reader);
+        in.setLenient(true); // Like Gson, so hand edited files keep loading
+        try {
+            try {
+                if (in.peek() == JsonToken.NULL) return;
+            } catch (EOFException e) {
+                return;
+            }
+            if (valueJsonCodec == null) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    map.put(keyParser.apply(in.nextString()), (V) Boolean.TRUE);
+                }
+                in.endArray();
+            } else {
+                in.beginObject();
+                while (in.hasNext()) {
+                    final K key = keyParser.apply(in.nextName());
+                    if (in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                    } else {
+                        map.put(key, valueJsonCodec.read(in));
+                    }
+                }
+                in.endObject();
+            }
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Malformed JSON: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write a map in the JSON form
+     *
+     * @param writer The writer to write to
+     * @param map    The map
+     *
+     * @throws IOException If an error occurred while writing
+     */
+    public void writeJson(final Writer writer, final Map<K, V> map) throws IOException {
+        final JsonWriter out = new JsonWriter(writer);
+        if (valueJsonCodec == null) {
+            out.beginArray();
+            for (K key : map.keySet()) {
+                out.value(String.valueOf(key));
+            }
+            out.endArray();
+        } else {
+            out.beginObject();
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                out.name(String.valueOf(entry.getKey()));
+                valueJsonCodec.write(out, entry.getValue());
+            }
+            out.endObject();
+        }
+        out.flush();
+    }
+
+    /**
+     * Read the binary form into a map
+     *
+     * @param in  The input to read from
+     * @param map The map to add the entries to
+     *
+     * @throws IOException If an error occurred while reading
+     */
+    public void readBinary(final DataInput in, final Map<K, V> map) throws IOException {
+        final int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            final K key = keyCodec.read(in);
+            map.put(key, valueCodec.read(in));
+        }
+    }
+
+    /**
+     * Write a map in the binary form
+     *
+     * @param out The output to write to
+     * @param map The map
+     *
+     * @throws IOException If an error occurred while writing
+     */
+    public void writeBinary(final DataOutput out, final Map<K, V> map) throws IOException {
+        final List<Map.Entry<K, V>> entries = new ArrayList<>(map.entrySet()); // The count must match even if the map is changing
+        out.writeInt(entries.size());
+        for (Map.Entry<K, V> entry : entries) {
+            keyCodec.write(out, entry.getKey());
+            valueCodec.write(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Parse a UUID in its canonical 36 character form without the allocations of {@link UUID#fromString(String)}, which is noticeable
+     * when loading hundreds of thousands of them
+     *
+     * @param name The UUID string
+     *
+     * @return The UUID
+     */
+    static UUID parseUUID(final String name) {
+        if (name.length() != 36 || name.charAt(8) != '-' || name.charAt(13) != '-' || name.charAt(18) != '-' || name.charAt(23) != '-') {
+            return UUID.fromString(name);
+        }
+        final long msb = (parseHex(name, 0, 8) << 32) | (parseHex(name, 9, 13) << 16) | parseHex(name, 14, 18);
+        final long lsb = (parseHex(name, 19, 23) << 48) | parseHex(name, 24, 36);
+        return new UUID(msb, lsb);
+    }
+
+    private static long parseHex(final String name, final int start, final int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = Character.digit(name.charAt(i), 16);
+            if (digit < 0) throw new IllegalArgumentException("Invalid UUID string: " + name);
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
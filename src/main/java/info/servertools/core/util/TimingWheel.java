@@ -0,0 +1,208 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * A hashed timing wheel that runs tasks after a number of ticks.
+ * <p>
+ * The wheel is a ring of slots, each holding a doubly linked list of timers. A timer is linked into the slot its deadline falls in, so
+ * scheduling and cancelling it are constant time. Every {@link #tick()} moves to the next slot and runs the timers in it whose deadline has
+ * come. Timers that are more than one turn of the wheel away share the slot and are skipped until their turn, so a tick only ever looks at
+ * one slot no matter how many timers are pending.
+ * </p>
+ * <p>
+ * The wheel is not thread safe. It is meant to be ticked and used from the server thread only.
+ * </p>
+ */
+public final class TimingWheel {
+
+    private static final Logger log = LogManager.getLogger();
+
+    private final Timer[] slots;
+    private final int mask;
+    private final List<Timer> expired = new ArrayList<>();
+    private long tick;
+    private int pending;
+
+    /**
+     * Construct a new TimingWheel
+     *
+     * @param slots The number of slots, rounded up to a power of two. Deadlines up to this many ticks away never share a slot with a
+     *              later turn of the wheel
+     */
+    public TimingWheel(final int slots) {
+        final int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.slots = new Timer[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Run a task after a number of ticks
+     *
+     * @param delay The number of ticks to wait, at least one
+     * @param task  The task
+     *
+     * @return The timer, which can be used to cancel the task
+     */
+    public Timer schedule(final long delay, final Runnable task) {
+        Objects.requireNonNull(task, "task");
+        final Timer timer = new Timer(this, tick + Math.max(1, delay), task);
+        link(timer);
+        return timer;
+    }
+
+    /**
+     * Advance the wheel by one tick and run the tasks that are due
+     */
+    public void tick() {
+        tick++;
+        final int slot = (int) (tick & mask);
+        for (Timer timer = slots[slot]; timer != null; timer = timer.next) {
+            if (timer.deadline <= tick) expired.add(timer);
+        }
+        // Unlink everything first, so tasks can schedule and cancel timers freely
+        for (Timer timer : expired) {
+            unlink(timer);
+            timer.due = true;
+        }
+        for (Timer timer : expired) {
+            if (!timer.due) continue; // Cancelled by a task that ran before it this tick
+            timer.due = false;
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                log.error("Timer task {} failed", timer.task, e);
+            }
+        }
+        expired.clear();
+    }
+
+    /**
+     * Get the number of ticks the wheel has advanced
+     *
+     * @return The current tick
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Get the number of timers waiting to run
+     *
+     * @return The number of timers
+     */
+    public int getPendingCount() {
+        return pending;
+    }
+
+    private void link(final Timer timer) {
+        final int slot = (int) (timer.deadline & mask);
+        timer.next = slots[slot];
+        if (timer.next != null) timer.next.prev = timer;
+        slots[slot] = timer;
+        timer.linked = true;
+        pending++;
+    }
+
+    private void unlink(final Timer timer) {
+        if (!timer.linked) return;
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[(int) (timer.deadline & mask)] = timer.next;
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        timer.linked = false;
+        pending--;
+    }
+
+    @Override
+    public String toString() {
+        return "TimingWheel{" +
+                "slots=" + slots.length +
+                ", tick=" + tick +
+                ", pending=" + pending +
+                '}';
+    }
+
+    /**
+     * A task waiting on a {@link TimingWheel}
+     */
+    public static final class Timer {
+
+        private final TimingWheel wheel;
+        private final long deadline;
+        private final Runnable task;
+
+        @Nullable private Timer prev;
+        @Nullable private Timer next;
+        private boolean linked;
+        private boolean due; // Unlinked by the current tick but hasn't run yet
+
+        Timer(final TimingWheel wheel, final long deadline, final Runnable task) {
+            this.wheel = wheel;
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * Stop the task from running
+         *
+         * @return {@code true} if the task was cancelled, {@code false} if it had already run or been cancelled
+         */
+        public boolean cancel() {
+            if (due) {
+                due = false;
+                return true;
+            }
+            if (!linked) return false;
+            wheel.unlink(this);
+            return true;
+        }
+
+        /**
+         * Get whether the task is still waiting to run
+         *
+         * @return {@code true} if the task is waiting
+         */
+        public boolean isPending() {
+            return linked || due;
+        }
+
+        /**
+         * Get the number of ticks until the task runs
+         *
+         * @return The number of ticks, or {@code 0} if the task is no longer waiting
+         */
+        public long getRemainingTicks() {
+            return linked ? deadline - wheel.tick : 0;
+        }
+    }
+}
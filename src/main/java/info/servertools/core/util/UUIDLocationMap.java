@@ -0,0 +1,317 @@
+/*
+ * This file is a part of ServerTools <http://servertools.info>
+ *
+ * Copyright (c) 2014 ServerTools
+ * Copyright (c) 2014 contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package info.servertools.core.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link UUID} to {@link Location} map that stores its entries in primitive arrays instead of node, key and value objects.
+ * <p>
+ * Entries are packed densely in parallel arrays (struct of arrays) holding the two halves of the UUID, the dimension and the three
+ * coordinates. An open-addressing index of {@code int} positions keyed on the UUID bits finds them. Removing an entry moves the last entry
+ * into its place, so the arrays never contain holes. Depending on how much spare capacity the arrays have this needs between one half and
+ * two thirds of the heap of a {@link java.util.HashMap}, and it gives the garbage collector nothing to trace per entry.
+ * </p>
+ * <p>
+ * All methods are synchronized. {@link #entrySet()} iterates a {@linkplain #copy() copy}, so it is safe to serialize the map from another
+ * thread while it is being modified. The entry set does not support modification.
+ * </p>
+ */
+public final class UUIDLocationMap extends AbstractMap<UUID, Location> {
+
+    private static final int MIN_CAPACITY = 16;
+    private static final double MAX_LOAD = 0.75;
+
+    private long[] msbs;
+    private long[] lsbs;
+    private int[] dims;
+    private double[] xs;
+    private double[] ys;
+    private double[] zs;
+    private int size;
+
+    private int[] index; // Entry position + 1, 0 marks an empty slot
+
+    /**
+     * Construct a new, empty UUIDLocationMap
+     */
+    public UUIDLocationMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Construct a new, empty UUIDLocationMap
+     *
+     * @param expectedSize The number of entries to allocate room for
+     */
+    public UUIDLocationMap(final int expectedSize) {
+        final int capacity = Math.max(MIN_CAPACITY, expectedSize);
+        this.msbs = new long[capacity];
+        this.lsbs = new long[capacity];
+        this.dims = new int[capacity];
+        this.xs = new double[capacity];
+        this.ys = new double[capacity];
+        this.zs = new double[capacity];
+        this.index = new int[indexCapacityFor(capacity)];
+    }
+
+    private UUIDLocationMap(final UUIDLocationMap other) {
+        this.size = other.size;
+        this.msbs = Arrays.copyOf(other.msbs, size);
+        this.lsbs = Arrays.copyOf(other.lsbs, size);
+        this.dims = Arrays.copyOf(other.dims, size);
+        this.xs = Arrays.copyOf(other.xs, size);
+        this.ys = Arrays.copyOf(other.ys, size);
+        this.zs = Arrays.copyOf(other.zs, size);
+        this.index = other.index.clone();
+    }
+
+    private static int indexCapacityFor(final int entries) {
+        int capacity = MIN_CAPACITY;
+        while (entries > capacity * MAX_LOAD) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int hash(final long msb, final long lsb) {
+        long h = msb ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private int findSlot(final long msb, final long lsb) {
+        final int mask = index.length - 1;
+        for (int slot = hash(msb, lsb) & mask; ; slot = (slot + 1) & mask) {
+            final int pos = index[slot] - 1;
+            if (pos < 0) {
+                return -1;
+            } else if (msbs[pos] == msb && lsbs[pos] == lsb) {
+                return slot;
+            }
+        }
+    }
+
+    private void insertIndex(final int pos) {
+        final int mask = index.length - 1;
+        int slot = hash(msbs[pos], lsbs[pos]) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = pos + 1;
+    }
+
+    private void removeIndex(int slot) {
+        // Backward shift deletion keeps every probe sequence intact without tombstones
+        final int mask = index.length - 1;
+        for (int next = (slot + 1) & mask; index[next] != 0; next = (next + 1) & mask) {
+            final int pos = index[next] - 1;
+            final int home = hash(msbs[pos], lsbs[pos]) & mask;
+            final boolean reachable = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+            if (!reachable) {
+                index[slot] = index[next];
+                slot = next;
+            }
+        }
+        index[slot] = 0;
+    }
+
+    private void grow() {
+        final int capacity = msbs.length + (msbs.length >> 1);
+        msbs = Arrays.copyOf(msbs, capacity);
+        lsbs = Arrays.copyOf(lsbs, capacity);
+        dims = Arrays.copyOf(dims, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        zs = Arrays.copyOf(zs, capacity);
+    }
+
+    private void rehash() {
+        index = new int[index.length << 1];
+        for (int pos = 0; pos < size; pos++) {
+            insertIndex(pos);
+        }
+    }
+
+    private Location location(final int pos) {
+        return new Location(dims[pos], xs[pos], ys[pos], zs[pos]);
+    }
+
+    private void setLocation(final int pos, final Location location) {
+        dims[pos] = location.getDim();
+        xs[pos] = location.getX();
+        ys[pos] = location.getY();
+        zs[pos] = location.getZ();
+    }
+
+    @Nullable
+    @Override
+    public synchronized Location get(final Object key) {
+        if (!(key instanceof UUID)) return null;
+        final UUID uuid = (UUID) key;
+        final int slot = findSlot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return slot < 0 ? null : location(index[slot] - 1);
+    }
+
+    @Override
+    public synchronized boolean containsKey(final Object key) {
+        if (!(key instanceof UUID)) return false;
+        final UUID uuid = (UUID) key;
+        return findSlot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()) >= 0;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Location put(final UUID key, final Location value) {
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(value, "value");
+        final long msb = key.getMostSignificantBits();
+        final long lsb = key.getLeastSignificantBits();
+        final int slot = findSlot(msb, lsb);
+        if (slot >= 0) {
+            final int pos = index[slot] - 1;
+            final Location old = location(pos);
+            setLocation(pos, value);
+            return old;
+        }
+
+        if (size == msbs.length) grow();
+        final int pos = size++;
+        msbs[pos] = msb;
+        lsbs[pos] = lsb;
+        setLocation(pos, value);
+        if (size > index.length * MAX_LOAD) {
+            rehash();
+        } else {
+            insertIndex(pos);
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public synchronized Location remove(final Object key) {
+        if (!(key instanceof UUID)) return null;
+        final UUID uuid = (UUID) key;
+        final int slot = findSlot(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (slot < 0) return null;
+
+        final int pos = index[slot] - 1;
+        final Location old = location(pos);
+        removeIndex(slot);
+
+        final int last = --size;
+        if (pos != last) {
+            // Move the last entry into the hole
+            index[findSlot(msbs[last], lsbs[last])] = pos + 1;
+            msbs[pos] = msbs[last];
+            lsbs[pos] = lsbs[last];
+            dims[pos] = dims[last];
+            xs[pos] = xs[last];
+            ys[pos] = ys[last];
+            zs[pos] = zs[last];
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        size = 0;
+        Arrays.fill(index, 0);
+    }
+
+    /**
+     * Get a point in time copy of this map. Copying is a handful of array copies and does not create any objects per entry.
+     *
+     * @return The copy
+     */
+    public synchronized UUIDLocationMap copy() {
+        return new UUIDLocationMap(this);
+    }
+
+    @Override
+    public Set<Entry<UUID, Location>> entrySet() {
+        final UUIDLocationMap copy = copy();
+        return new AbstractSet<Entry<UUID, Location>>() {
+            @Override
+            public Iterator<Entry<UUID, Location>> iterator() {
+                return new Iterator<Entry<UUID, Location>>() {
+                    private int pos;
+
+                    @Override
+                    public boolean hasNext() {
+                        return pos < copy.size;
+                    }
+
+                    @Override
+                    public Entry<UUID, Location> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        final UUID key = new UUID(copy.msbs[pos], copy.lsbs[pos]);
+                        return new SimpleImmutableEntry<>(key, copy.location(pos++));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return copy.size;
+            }
+        };
+    }
+
+    /**
+     * Estimate the heap used by this map, including unused array capacity
+     *
+     * @return The estimated size in bytes
+     */
+    public synchronized long getFootprint() {
+        final long arrayHeader = 16;
+        return 6 * arrayHeader + (long) msbs.length * (8 + 8 + 4 + 8 + 8 + 8) + arrayHeader + (long) index.length * 4;
+    }
+
+    /**
+     * Estimate the heap a {@link java.util.HashMap HashMap&lt;UUID, Location&gt;} with the same number of entries would use. This
+     * assumes compressed object pointers and counts a 32 byte node, a 32 byte UUID and a 40 byte Location per entry plus the table.
+     *
+     * @return The estimated size in bytes
+     */
+    public synchronized long getHashMapFootprint() {
+        int table = MIN_CAPACITY;
+        while (size > table * 0.75) {
+            table <<= 1;
+        }
+        return 16 + (long) table * 4 + (long) size * (32 + 32 + 40);
+    }
+}